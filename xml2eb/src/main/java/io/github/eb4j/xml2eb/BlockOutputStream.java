@@ -7,13 +7,25 @@ import java.util.Arrays;
 
 /**
  * ブロック出力ストリーム。
+ * <p>
+ * 書き込まれたデータは内部バッファに蓄積し、まとめて下位のストリームへ出力します。
+ * 内部バッファは1ブロックから始めて必要に応じて拡張します。
  *
  * @author Hisaya FUKUMOTO
  */
 public class BlockOutputStream extends FilterOutputStream {
 
+    /** ブロックサイズ */
+    private static final int BLOCK_SIZE = 2048;
+    /** 内部バッファの最大サイズ */
+    private static final int MAX_BUFFER_SIZE = BLOCK_SIZE * 32;
+
     /** 書き込みサイズ */
     private long _size = 0L;
+    /** 内部バッファ */
+    private byte[] _buf = null;
+    /** 内部バッファ内のバイト数 */
+    private int _count = 0;
 
 
     /**
@@ -23,6 +35,7 @@ public class BlockOutputStream extends FilterOutputStream {
      */
     public BlockOutputStream(final OutputStream out) {
         super(out);
+        _buf = new byte[BLOCK_SIZE];
     }
 
 
@@ -34,19 +47,31 @@ public class BlockOutputStream extends FilterOutputStream {
     @Override
     public void close() throws IOException {
         try {
-            int pad = (int)(_size % 2048);
+            int pad = (int)(_size % BLOCK_SIZE);
             if (pad > 0) {
-                pad = 2048 - pad;
-                byte[] b = new byte[pad];
-                Arrays.fill(b, (byte)0x00);
-                out.write(b, 0, b.length);
+                pad = BLOCK_SIZE - pad;
+                _ensure(pad);
+                Arrays.fill(_buf, _count, _count + pad, (byte)0x00);
+                _count += pad;
+                _size += pad;
             }
-            out.flush();
+            flush();
         } catch (IOException e) {
         }
         out.close();
     }
 
+    /**
+     * 内部バッファの内容を出力し、出力ストリームをフラッシュします。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    @Override
+    public void flush() throws IOException {
+        _flushBuffer();
+        out.flush();
+    }
+
     /**
      * 指定されたバイト配列を書き込みます。
      *
@@ -68,8 +93,16 @@ public class BlockOutputStream extends FilterOutputStream {
      */
     @Override
     public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (len >= MAX_BUFFER_SIZE) {
+            // 大きなデータはバッファを経由せずに書き込む
+            _flushBuffer();
+            out.write(b, off, len);
+        } else {
+            _ensure(len);
+            System.arraycopy(b, off, _buf, _count, len);
+            _count += len;
+        }
         _size += len;
-        out.write(b, off, len);
     }
 
     /**
@@ -80,9 +113,43 @@ public class BlockOutputStream extends FilterOutputStream {
      */
     @Override
     public void write(final int b) throws IOException {
-        byte[] val = new byte[1];
-        val[0] = (byte)(b & 0xff);
-        write(val, 0, val.length);
+        if (_count >= _buf.length) {
+            _ensure(1);
+        }
+        _buf[_count++] = (byte)b;
+        _size++;
+    }
+
+    /**
+     * 指定された値を2バイト (ビッグエンディアン) で書き込みます。
+     *
+     * @param v 書き込む値
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    public void writeShort(final int v) throws IOException {
+        if (_count + 2 > _buf.length) {
+            _ensure(2);
+        }
+        _buf[_count++] = (byte)(v >>> 8);
+        _buf[_count++] = (byte)v;
+        _size += 2;
+    }
+
+    /**
+     * 指定された値を4バイト (ビッグエンディアン) で書き込みます。
+     *
+     * @param v 書き込む値
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    public void writeInt(final int v) throws IOException {
+        if (_count + 4 > _buf.length) {
+            _ensure(4);
+        }
+        _buf[_count++] = (byte)(v >>> 24);
+        _buf[_count++] = (byte)(v >>> 16);
+        _buf[_count++] = (byte)(v >>> 8);
+        _buf[_count++] = (byte)v;
+        _size += 4;
     }
 
     /**
@@ -93,6 +160,39 @@ public class BlockOutputStream extends FilterOutputStream {
     public long getSize() {
         return _size;
     }
+
+    /**
+     * 内部バッファに指定されたバイト数の空きを確保します。
+     * 最大サイズまではバッファを拡張し、それ以上は内容を出力して空けます。
+     *
+     * @param len 必要なバイト数
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _ensure(final int len) throws IOException {
+        int need = _count + len;
+        if (need <= _buf.length) {
+            return;
+        }
+        if (_buf.length < MAX_BUFFER_SIZE) {
+            int size = Math.min(Math.max(_buf.length * 2, need), MAX_BUFFER_SIZE);
+            _buf = Arrays.copyOf(_buf, size);
+        }
+        if (need > _buf.length) {
+            _flushBuffer();
+        }
+    }
+
+    /**
+     * 内部バッファの内容を出力ストリームに書き込みます。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _flushBuffer() throws IOException {
+        if (_count > 0) {
+            out.write(_buf, 0, _count);
+            _count = 0;
+        }
+    }
 }
 
 // end of BlockOutputStream.java
@@ -0,0 +1,303 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 書籍定義XMLのストリーム読み込みクラス。
+ * <p>
+ * content要素内のitem要素を除いた骨格のみをDOMとして保持し、
+ * item要素は1つずつ読み込んでハンドラに渡します。
+ * <p>
+ * CDATAセクションはDOMで読み込んだ場合と同じくCDATAセクションノードとして保持します。
+ * このため見出し/本文には出力されず、検索語およびキーワードには含まれます。
+ * JDK標準の実装はCDATAセクションを通常の文字データとして通知するため、
+ * 実装固有のプロパティを設定してCDATAイベントとして区別します。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+class BookStreamReader {
+
+    /** CDATAセクションをCDATAイベントとして通知させるJDK標準実装のプロパティ */
+    private static final String REPORT_CDATA =
+        "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /** ログ */
+    private Logger _logger = null;
+    /** XMLファイル */
+    private File _file = null;
+    /** 入力ファクトリ */
+    private XMLInputFactory _factory = null;
+    /** DOMドキュメント生成用ファクトリ */
+    private DocumentBuilderFactory _builderFactory = null;
+
+
+    /**
+     * item要素のハンドラ。
+     */
+    interface ItemHandler {
+
+        /**
+         * item要素を処理します。
+         *
+         * @param item item要素
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        void handle(Element item) throws IOException;
+    }
+
+
+    /**
+     * コンストラクタ。
+     *
+     * @param file XMLファイル
+     */
+    BookStreamReader(final File file) {
+        super();
+        _logger = LoggerFactory.getLogger(getClass());
+        _file = file;
+        _factory = XMLInputFactory.newInstance();
+        _factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        if (_factory.isPropertySupported(REPORT_CDATA)) {
+            _factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+        }
+        _builderFactory = DocumentBuilderFactory.newInstance();
+    }
+
+
+    /**
+     * item要素を除いた書籍の骨格を読み込みます。
+     *
+     * @return 骨格のDOMドキュメント
+     * @exception ParserConfigurationException DocumentBuilderを生成できない場合
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    Document readSkeleton() throws ParserConfigurationException, IOException {
+        Document doc = _builderFactory.newDocumentBuilder().newDocument();
+        InputStream in = null;
+        XMLStreamReader reader = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(_file));
+            reader = _factory.createXMLStreamReader(in);
+            Node parent = doc;
+            int content = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (content > 0 && "item".equals(name)) {
+                        _skip(reader);
+                        continue;
+                    }
+                    if ("content".equals(name)) {
+                        content++;
+                    }
+                    Element elem = _createElement(doc, reader);
+                    parent.appendChild(elem);
+                    parent = elem;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if ("content".equals(reader.getLocalName())) {
+                        content--;
+                    }
+                    parent = parent.getParentNode();
+                } else if (parent != doc) {
+                    _appendText(doc, parent, reader, event);
+                }
+            }
+        } catch (XMLStreamException e) {
+            _logger.error(e.getMessage());
+            throw new IOException(e);
+        } finally {
+            _close(reader);
+            IOUtils.closeQuietly(in);
+        }
+        return doc;
+    }
+
+    /**
+     * 指定された副本のitem要素を先頭から順にハンドラへ渡します。
+     * 複数のスレッドから同時に呼び出すことができます。
+     *
+     * @param index 副本の番号 (0から)
+     * @param handler item要素のハンドラ
+     * @return 処理したitem要素の数
+     * @exception ParserConfigurationException DocumentBuilderを生成できない場合
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    int readItems(final int index, final ItemHandler handler)
+        throws ParserConfigurationException, IOException {
+        Document doc = null;
+        synchronized (_builderFactory) {
+            doc = _builderFactory.newDocumentBuilder().newDocument();
+        }
+        InputStream in = null;
+        XMLStreamReader reader = null;
+        int count = 0;
+        try {
+            in = new BufferedInputStream(new FileInputStream(_file));
+            synchronized (_factory) {
+                reader = _factory.createXMLStreamReader(in);
+            }
+            int subbook = -1;
+            int depth = 0;
+            int contentDepth = -1;
+            boolean contentDone = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if ("subbook".equals(name)) {
+                        subbook++;
+                        if (subbook > index) {
+                            break;
+                        }
+                    } else if (subbook == index) {
+                        if (contentDepth < 0) {
+                            if (!contentDone && "content".equals(name)) {
+                                contentDepth = depth;
+                            }
+                        } else if ("item".equals(name)) {
+                            handler.handle(_readElement(doc, reader));
+                            depth--;
+                            count++;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == contentDepth) {
+                        contentDepth = -1;
+                        contentDone = true;
+                    }
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException e) {
+            _logger.error(e.getMessage());
+            throw new IOException(e);
+        } finally {
+            _close(reader);
+            IOUtils.closeQuietly(in);
+        }
+        return count;
+    }
+
+    /**
+     * 現在の開始タグから終了タグまでを要素として読み込みます。
+     *
+     * @param doc 要素を生成するドキュメント
+     * @param reader ストリームリーダ
+     * @return 要素
+     * @exception XMLStreamException 構文解析エラーが発生した場合
+     */
+    private Element _readElement(final Document doc, final XMLStreamReader reader)
+        throws XMLStreamException {
+        Element root = _createElement(doc, reader);
+        Node parent = root;
+        while (parent != null) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                Element elem = _createElement(doc, reader);
+                parent.appendChild(elem);
+                parent = elem;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                parent = parent == root ? null : parent.getParentNode();
+            } else {
+                _appendText(doc, parent, reader, event);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * 現在の開始タグに対応する終了タグまで読み飛ばします。
+     *
+     * @param reader ストリームリーダ
+     * @exception XMLStreamException 構文解析エラーが発生した場合
+     */
+    private void _skip(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * 現在の開始タグから属性付きの要素を生成します。
+     *
+     * @param doc 要素を生成するドキュメント
+     * @param reader ストリームリーダ
+     * @return 要素
+     */
+    private Element _createElement(final Document doc, final XMLStreamReader reader) {
+        Element elem = doc.createElement(reader.getLocalName());
+        int n = reader.getAttributeCount();
+        for (int i = 0; i < n; i++) {
+            elem.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        return elem;
+    }
+
+    /**
+     * 文字データを追加します。
+     * 隣接する文字データはDOMと同様に1つのテキストノードにまとめます。
+     * CDATAセクションはDOMと同様に個別のCDATAセクションノードとして追加します。
+     *
+     * @param doc ノードを生成するドキュメント
+     * @param parent 親ノード
+     * @param reader ストリームリーダ
+     * @param event イベント種別
+     */
+    private void _appendText(final Document doc, final Node parent,
+                             final XMLStreamReader reader, final int event) {
+        if (event == XMLStreamConstants.CDATA) {
+            parent.appendChild(doc.createCDATASection(reader.getText()));
+        } else if (event == XMLStreamConstants.CHARACTERS
+                   || event == XMLStreamConstants.SPACE) {
+            Node last = parent.getLastChild();
+            if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+                ((Text)last).appendData(reader.getText());
+            } else {
+                parent.appendChild(doc.createTextNode(reader.getText()));
+            }
+        }
+    }
+
+    /**
+     * ストリームリーダを閉じます。
+     *
+     * @param reader ストリームリーダ
+     */
+    private void _close(final XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+            }
+        }
+    }
+}
+
+// end of BookStreamReader.java
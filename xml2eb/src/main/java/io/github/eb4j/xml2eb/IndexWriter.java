@@ -2,50 +2,179 @@ package io.github.eb4j.xml2eb;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * インデックス出力クラス。
+ * <p>
+ * 整列済みの検索語を一度だけ走査し、リーフブロックと上位ブロックを
+ * 下位の階層から順に構築します。各階層は作成中の1ブロックと最後の検索語だけを保持し、
+ * エントリは到着した時点でブロックに符号化します。確定したブロックは
+ * 階層ごとの一時データに書き出すため、メモリ使用量は階層の数に比例します。
+ * リーフブロックは充填率で指定された使用量までエントリを詰めます。
+ * <p>
+ * 最後に、上位の階層から順に各階層のブロック範囲を割り当て、
+ * 各階層の一時データを連結して1つのファイルに書き出します。
+ * 参照位置は階層内の位置と検索語セットのタグ番号で記録しておき、
+ * ブロック範囲が確定した後にファイル内の位置に変換して参照情報に登録します。
+ * 検索語はバッファを直接参照して書き込むため、エントリごとにオブジェクトを生成しません。
  *
  * @author Hisaya FUKUMOTO
  */
 public class IndexWriter {
 
+    /** ブロックサイズ */
+    private static final int BLOCK_SIZE = 2048;
+    /** 参照位置リストの初期容量 */
+    private static final int INITIAL_CAPACITY = 256;
+
     /** ログ */
     private Logger _logger = null;
 
-    /** ベースファイル */
+    /** インデックスファイル */
     private File _file = null;
-    /** インデックス階層リスト */
-    private List<IndexLayer> _layerList = null;
-    /** 出力ストリームリスト */
-    private List<OutputStream> _streamList = null;
-    /** 現在の階層の深さ */
-    private int _depth = 0;
+    /** 階層リスト (0がリーフ) */
+    private List<Level> _levelList = null;
+    /** リーフブロックに詰める最大バイト数 */
+    private int _leafLimit = BLOCK_SIZE;
     /** 参照情報 */
     private Reference _ref = null;
+    /** 一時データ格納 */
+    private SectionStore _store = null;
+    /** 参照位置の階層レベル */
+    private int[] _fixLevel = null;
+    /** 参照位置 (階層内の位置) */
+    private long[] _fixPos = null;
+    /** 参照先のタグ番号 (リーフ) または下位ブロック番号 (上位) */
+    private long[] _fixValue = null;
+    /** 書き込んだ検索語セット */
+    private WordSet _wordSet = null;
+    /** 参照位置の数 */
+    private int _fixCount = 0;
+
+
+    /**
+     * インデックス階層。
+     * 作成中のブロックと、確定したブロックを書き出す一時データを保持します。
+     * 上位ブロックのエントリは最大の検索語のバイト数の間隔で並べ、
+     * 下位ブロック番号はブロックを確定するまで参照の位置に仮に格納します。
+     */
+    private static final class Level {
+
+        /** 階層レベル */
+        private int _level = 0;
+        /** 一時ファイル */
+        private File _file = null;
+        /** 一時データへの出力ストリーム */
+        private OutputStream _out = null;
+        /** ファイル内の先頭ブロック (0から) */
+        private long _first = 0L;
+        /** 確定したブロック数 */
+        private int _count = 0;
+        /** 作成中のブロック */
+        private byte[] _buf = new byte[BLOCK_SIZE];
+        /** 作成中のブロックの使用バイト数 (リーフ) */
+        private int _length = 4;
+        /** 作成中のブロックのエントリ数 */
+        private int _size = 0;
+        /** 作成中のブロックの最大の検索語のバイト数 (上位) */
+        private int _maxLength = 0;
+        /** 最後に追加した検索語 */
+        private byte[] _last = new byte[255];
+        /** 最後に追加した検索語のバイト数 */
+        private int _lastLength = 0;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param level 階層レベル
+         * @param file 一時ファイル
+         */
+        private Level(final int level, final File file) {
+            super();
+            _level = level;
+            _file = file;
+        }
+
+
+        /**
+         * 作成中のブロックの階層内のブロック番号 (1から) を返します。
+         *
+         * @return ブロック番号
+         */
+        private long getBlock() {
+            return _count + 1;
+        }
+
+        /**
+         * 最後に追加した検索語を記録します。
+         *
+         * @param b 検索語を含むバイト配列
+         * @param off 検索語の開始位置
+         * @param len 検索語のバイト数
+         */
+        private void setLast(final byte[] b, final int off, final int len) {
+            System.arraycopy(b, off, _last, 0, len);
+            _lastLength = len;
+        }
+
+        /**
+         * 作成中の上位ブロックのエントリを、指定された検索語のバイト数の間隔で並べ直します。
+         * 後ろのエントリから移動し、検索語の後ろの空きは0で埋めます。
+         *
+         * @param len 新しい最大の検索語のバイト数
+         */
+        private void setMaxLength(final int len) {
+            int old = _maxLength;
+            for (int i = _size - 1; i >= 0; i--) {
+                int src = 4 + i * (old + 4);
+                int dst = 4 + i * (len + 4);
+                System.arraycopy(_buf, src + old, _buf, dst + len, 4);
+                System.arraycopy(_buf, src, _buf, dst, old);
+                Arrays.fill(_buf, dst + old, dst + len, (byte)0x00);
+            }
+            _maxLength = len;
+        }
+
+        /**
+         * 作成中のブロックを一時データに書き出し、次のブロックの作成を開始します。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private void writeBlock() throws IOException {
+            _out.write(_buf, 0, BLOCK_SIZE);
+            Arrays.fill(_buf, (byte)0x00);
+            _count++;
+            _length = 4;
+            _size = 0;
+            _maxLength = 0;
+        }
+    }
 
 
     /**
      * コンストラクタ。
      *
-     * @param file ベースファイル
+     * @param file インデックスファイル
      */
     public IndexWriter(final File file) {
         super();
         _logger = LoggerFactory.getLogger(getClass());
         _file = file;
-        _layerList = new ArrayList<IndexLayer>();
-        _streamList = new ArrayList<OutputStream>();
+        _levelList = new ArrayList<>();
+        _store = new SectionStore(0L);
+        _fixLevel = new int[INITIAL_CAPACITY];
+        _fixPos = new long[INITIAL_CAPACITY];
+        _fixValue = new long[INITIAL_CAPACITY];
     }
 
 
@@ -59,38 +188,64 @@ public class IndexWriter {
     }
 
     /**
-     * すべての出力ストリームを閉じます。
+     * 一時データ格納を設定します。
+     *
+     * @param store 一時データ格納
+     */
+    void setSectionStore(final SectionStore store) {
+        _store = store;
+    }
+
+    /**
+     * リーフブロックの充填率を設定します。
+     * リーフブロックにはブロックサイズに充填率を掛けたバイト数までエントリを詰めます。
+     * 充填率を下げるとインデックスは大きくなりますが、
+     * 検索語の追加に対して各ブロックに余裕を残せます。
+     *
+     * @param factor 充填率 (0より大きく1以下)
+     * @exception IllegalArgumentException 充填率が範囲外の場合
+     */
+    public void setFillFactor(final float factor) {
+        if (!(factor > 0.0f && factor <= 1.0f)) {
+            throw new IllegalArgumentException("invalid fill factor: " + factor);
+        }
+        _leafLimit = (int)(BLOCK_SIZE * factor);
+    }
+
+    /**
+     * 構築中のブロックを確定し、すべての階層をファイルに書き出します。
+     * ファイルには最上位の階層から順に各階層のブロックを連続して配置します。
+     * 階層ごとの一時データは削除します。
      *
      */
     public void close() {
-        if (_layerList.isEmpty()) {
+        if (_levelList.isEmpty()) {
             return;
         }
         try {
-            IndexLayer layer = _layerList.get(0);
-            Index lastIndex = layer.getLastIndex();
-            for (int i = 1; i < _depth; i++) {
-                layer = _layerList.get(i - 1);
-                Index upperIndex = new Index(lastIndex.getWord(), layer.getBlock());
-                _addUpperLayer(i, upperIndex);
+            Level leaf = _levelList.get(0);
+            for (int i = 1; i < _levelList.size(); i++) {
+                Level lower = _levelList.get(i - 1);
+                _addUpper(i, leaf._last, 0, leaf._lastLength, lower.getBlock());
             }
-            _writeLeafLayer(true);
-            for (int i = 1; i < _depth; i++) {
-                _writeUpperLayer(i, true);
+            _flushLeaf(true);
+            for (int i = 1; i < _levelList.size(); i++) {
+                _flushUpper(_levelList.get(i), true);
             }
+            _setLayout();
+            _writeFile();
+            _putReference();
         } catch (IOException e) {
-        }
-        for (int i = 0; i < _depth; i++) {
-            OutputStream out = _streamList.get(i);
-            try {
-                out.close();
-            } catch (IOException e) {
-            }
+            _logger.error(e.getMessage(), e);
+        } finally {
+            _deleteLevels();
         }
     }
 
     /**
      * 検索語リストの内容を書き込みます。
+     * 検索語は検索語セットの読み込み元が返す順に書き込みます。
+     * 1つのインデックスに書き込める検索語セットは1つだけです。
      *
      * @param set 検索語セット
      * @exception IOException 入出力エラーが発生した場合
@@ -99,202 +254,284 @@ public class IndexWriter {
         if (set.isEmpty()) {
             return;
         }
-
-        IndexLayer layer = new IndexLayer(_file, _depth++);
-        OutputStream stream =
-            new BufferedOutputStream(new FileOutputStream(layer.getFile()));
-        _layerList.add(layer);
-        _streamList.add(stream);
-
-        Iterator<Word> it = set.iterator();
-        while (it.hasNext()) {
-            Word word = it.next();
-            int n = layer.getBlockLength() + word.getWordLength() + 13;
-            if (n > 2048) {
-                _writeLeafLayer();
-                if (_depth == 1) {
-                    IndexLayer upperLayer = new IndexLayer(_file, _depth++);
-                    OutputStream upperStream =
-                        new BufferedOutputStream(new FileOutputStream(upperLayer.getFile()));
-                    _layerList.add(upperLayer);
-                    _streamList.add(upperStream);
+        if (_wordSet != null) {
+            throw new IllegalStateException("word set already written");
+        }
+        _wordSet = set;
+        Level leaf = _getLevel(0);
+        WordSet.WordReader reader = set.reader();
+        try {
+            while (reader.next()) {
+                int len = reader.getLength();
+                if (leaf._size > 0 && leaf._length + len + 13 > _leafLimit) {
+                    long block = leaf.getBlock();
+                    _flushLeaf(false);
+                    _addUpper(1, leaf._last, 0, leaf._lastLength, block);
                 }
-                Index upperIndex = layer.getLastIndex();
-                _addUpperLayer(1, upperIndex);
-                layer.clear();
+                _addLeaf(leaf, reader.getBuffer(), reader.getOffset(), len, reader.getTagId());
             }
-            Index index = new Index(word, layer.getBlock());
-            layer.add(index);
+        } finally {
+            reader.close();
         }
     }
 
     /**
-     * 上位インデックスに追加します。
+     * 指定された階層を返します。存在しない場合は作成します。
      *
-     * @param level インデックス階層レベル
-     * @param index インデックス
+     * @param level 階層レベル
+     * @return 階層
      * @exception IOException 入出力エラーが発生した場合
      */
-    private void _addUpperLayer(final int level, final Index index) throws IOException {
-        _logger.trace("level=" + level + ", word=" + index.getWord());
-        IndexLayer layer = _layerList.get(level);
-        int wordLen = index.getWord().getWordLength();
-        int curLen = layer.getWordLength();
-        int n = 0;
-        if (curLen < wordLen) {
-            n = (layer.size() + 2) * (wordLen + 4) + 4;
-        } else {
-            n = (layer.size() + 2) * (curLen + 4) + 4;
-        }
-        if (n > 2048) {
-            _writeUpperLayer(level);
-            if (_depth == level + 1) {
-                IndexLayer upperLayer = new IndexLayer(_file, _depth++);
-                OutputStream upperStream =
-                    new BufferedOutputStream(new FileOutputStream(upperLayer.getFile()));
-                _layerList.add(upperLayer);
-                _streamList.add(upperStream);
-            }
-            Index lastIndex = layer.getLastIndex();
-            Index upperIndex = new Index(lastIndex.getWord(), layer.getBlock());
-            _addUpperLayer(level + 1, upperIndex);
-            layer.clear();
-            curLen = layer.getWordLength();
+    private Level _getLevel(final int level) throws IOException {
+        while (_levelList.size() <= level) {
+            int n = _levelList.size();
+            File file = new File(_file.getPath() + "." + n + ".tmp");
+            Level lv = new Level(n, file);
+            _levelList.add(lv);
+            lv._out = new BufferedOutputStream(_store.openOutputStream(file));
         }
+        return _levelList.get(level);
+    }
 
-        layer.add(index);
-        if (curLen < wordLen) {
-            layer.setWordLength(wordLen);
-        }
+    /**
+     * 作成中のリーフブロックにエントリを追加します。
+     *
+     * @param leaf リーフ階層
+     * @param b 検索語を含むバイト配列
+     * @param off 検索語の開始位置
+     * @param len 検索語のバイト数
+     * @param tagId 検索語セットのタグ番号
+     */
+    private void _addLeaf(final Level leaf, final byte[] b, final int off, final int len,
+                          final int tagId) {
+        byte[] buf = leaf._buf;
+        long pos = (leaf.getBlock() - 1) * BLOCK_SIZE;
+        int n = leaf._length;
+        buf[n++] = (byte)(len & 0xff);
+        System.arraycopy(b, off, buf, n, len);
+        n += len;
+        _addFixup(0, pos + n, tagId);
+        n += 12;
+        leaf._length = n;
+        leaf._size++;
+        leaf.setLast(b, off, len);
     }
 
     /**
-     * 下位インデックスを書き込みます。
+     * 上位インデックスにエントリを追加します。
+     * ブロックに収まらない場合は作成中のブロックを確定し、
+     * その最後の検索語をさらに上位の階層に追加します。
      *
+     * @param level 階層レベル
+     * @param b 検索語を含むバイト配列
+     * @param off 検索語の開始位置
+     * @param len 検索語のバイト数
+     * @param lower 下位ブロック番号
      * @exception IOException 入出力エラーが発生した場合
      */
-    private void _writeLeafLayer() throws IOException {
-        _writeLeafLayer(false);
+    private void _addUpper(final int level, final byte[] b, final int off, final int len,
+                           final long lower) throws IOException {
+        Level upper = _getLevel(level);
+        int maxLen = Math.max(upper._maxLength, len);
+        if ((upper._size + 2) * (maxLen + 4) + 4 > BLOCK_SIZE) {
+            long block = upper.getBlock();
+            _flushUpper(upper, false);
+            _addUpper(level + 1, upper._last, 0, upper._lastLength, block);
+            maxLen = len;
+        }
+        if (maxLen > upper._maxLength) {
+            upper.setMaxLength(maxLen);
+        }
+        byte[] buf = upper._buf;
+        int n = 4 + upper._size * (maxLen + 4);
+        System.arraycopy(b, off, buf, n, len);
+        n += maxLen;
+        buf[n] = (byte)((lower >>> 24) & 0xff);
+        buf[n + 1] = (byte)((lower >>> 16) & 0xff);
+        buf[n + 2] = (byte)((lower >>> 8) & 0xff);
+        buf[n + 3] = (byte)(lower & 0xff);
+        upper._size++;
+        upper.setLast(b, off, len);
     }
 
     /**
-     * 下位インデックスを書き込みます。
+     * 作成中のリーフブロックを確定して一時データに書き出します。
      *
-     * @param last 最後のインデックスの場合はtrue、そうでない場合はfalse
+     * @param last 最後のブロックの場合はtrue、そうでない場合はfalse
      * @exception IOException 入出力エラーが発生した場合
      */
-    private void _writeLeafLayer(final boolean last) throws IOException {
-        IndexLayer layer = _layerList.get(0);
-        if (layer.isEmpty()) {
+    private void _flushLeaf(final boolean last) throws IOException {
+        Level leaf = _levelList.get(0);
+        if (leaf._size == 0) {
             return;
         }
-
+        byte[] buf = leaf._buf;
         int id = 0x80;
-        if (layer.getBlock() == 1) {
+        if (leaf.getBlock() == 1) {
             id |= 0x40;
         }
         if (last) {
             id |= 0x20;
         }
-        byte[] buf = new byte[2048];
-        Arrays.fill(buf, (byte)0x00);
         buf[0] = (byte)id;
-
-        int size = layer.size();
-        buf[2] = (byte)((size >>> 8) & 0xff);
-        buf[3] = (byte)(size & 0xff);
-
-        long pos = (layer.getBlock() - 1) * 2048;
-        int off = 4;
-        for (int i = 0; i < size; i++) {
-            Index index = layer.get(i);
-            Word word = index.getWord();
-            byte[] b = word.getWord();
-            int len = b.length;
-            buf[off++] = (byte)(len & 0xff);
-            System.arraycopy(b, 0, buf, off, len);
-            off += len;
-            String name = word.getReferenceTag();
-            _ref.putBodyRef(layer.getFile(), pos + off, name);
-            off += 6;
-            _ref.putHeadRef(layer.getFile(), pos + off, name);
-            off += 6;
-        }
-        OutputStream out = _streamList.get(0);
-        out.write(buf, 0, buf.length);
-        out.flush();
-    }
-
-    /**
-     * 上位インデックスを書き込みます。
-     *
-     * @param level 階層レベル
-     * @exception IOException 入出力エラーが発生した場合
-     */
-    private void _writeUpperLayer(final int level) throws IOException {
-        _writeUpperLayer(level, false);
+        buf[2] = (byte)((leaf._size >>> 8) & 0xff);
+        buf[3] = (byte)(leaf._size & 0xff);
+        leaf.writeBlock();
     }
 
     /**
-     * 上位インデックスを書き込みます。
+     * 作成中の上位ブロックを確定して一時データに書き出します。
+     * 仮に格納した下位ブロック番号は参照位置として記録し、0に戻します。
+     * 最後のブロックには、最後のエントリと同じ下位ブロックを指すダミーを追加します。
      *
-     * @param level 階層レベル
-     * @param last 最後のインデックスの場合はtrue、そうでない場合はfalse
+     * @param upper 上位階層
+     * @param last 最後のブロックの場合はtrue、そうでない場合はfalse
      * @exception IOException 入出力エラーが発生した場合
      */
-    private void _writeUpperLayer(final int level, final boolean last) throws IOException {
-        IndexLayer layer = _layerList.get(level);
-        if (layer.isEmpty()) {
+    private void _flushUpper(final Level upper, final boolean last) throws IOException {
+        int size = upper._size;
+        if (size == 0) {
             return;
         }
-
-        int len = layer.getWordLength();
-        if (last) {
-            // ダミーを追加
-            byte[] b = new byte[len];
-            Arrays.fill(b, (byte)0xff);
-            Index lastIndex = layer.getLastIndex();
-            Word dummyWord = new Word(b, "");
-            long lastBlock = lastIndex.getLowerBlock();
-            Index dummy = new Index(dummyWord, lastBlock);
-            layer.add(dummy);
-        }
-
+        int len = upper._maxLength;
         int id = 0x00;
-        if (layer.getBlock() == 1) {
+        if (upper.getBlock() == 1) {
             id |= 0x40;
         }
         if (last) {
             id |= 0x20;
         }
-        byte[] buf = new byte[2048];
-        Arrays.fill(buf, (byte)0x00);
+        int count = size;
+        if (last) {
+            count++;
+        }
+        byte[] buf = upper._buf;
         buf[0] = (byte)id;
         buf[1] = (byte)(len & 0xff);
+        buf[2] = (byte)((count >>> 8) & 0xff);
+        buf[3] = (byte)(count & 0xff);
 
-        int size = layer.size();
-        buf[2] = (byte)((size >>> 8) & 0xff);
-        buf[3] = (byte)(size & 0xff);
-
-        long pos = (layer.getBlock() - 1) * 2048;
+        long pos = (upper.getBlock() - 1) * BLOCK_SIZE;
+        long lower = 0L;
         int off = 4;
         for (int i = 0; i < size; i++) {
-            Index index = layer.get(i);
-            Word word = index.getWord();
-            byte[] b = word.getWord();
-            System.arraycopy(b, 0, buf, off, b.length);
             off += len;
-            String name = Long.toString(index.getLowerBlock());
-            _ref.putIndexRef(layer.getFile(), pos + off, name);
+            lower = ((buf[off] & 0xffL) << 24) | ((buf[off + 1] & 0xffL) << 16)
+                | ((buf[off + 2] & 0xffL) << 8) | (buf[off + 3] & 0xffL);
+            Arrays.fill(buf, off, off + 4, (byte)0x00);
+            _addFixup(upper._level, pos + off, lower);
             off += 4;
         }
-        OutputStream out = _streamList.get(level);
-        out.write(buf, 0, buf.length);
-        out.flush();
-
         if (last) {
-            // ダミーを削除
-            layer.remove(size - 1);
+            // ダミーを追加
+            Arrays.fill(buf, off, off + len, (byte)0xff);
+            off += len;
+            _addFixup(upper._level, pos + off, lower);
+        }
+        upper.writeBlock();
+    }
+
+    /**
+     * 参照位置を記録します。
+     *
+     * @param level 階層レベル
+     * @param pos 階層内の位置
+     * @param value 検索語セットのタグ番号 (リーフ) または下位ブロック番号 (上位)
+     */
+    private void _addFixup(final int level, final long pos, final long value) {
+        if (_fixCount >= _fixPos.length) {
+            int size = _fixPos.length * 2;
+            _fixLevel = Arrays.copyOf(_fixLevel, size);
+            _fixPos = Arrays.copyOf(_fixPos, size);
+            _fixValue = Arrays.copyOf(_fixValue, size);
+        }
+        _fixLevel[_fixCount] = level;
+        _fixPos[_fixCount] = pos;
+        _fixValue[_fixCount] = value;
+        _fixCount++;
+    }
+
+    /**
+     * 上位の階層から順に、各階層のファイル内のブロック範囲を割り当てます。
+     *
+     */
+    private void _setLayout() {
+        long block = 0L;
+        for (int i = _levelList.size() - 1; i >= 0; i--) {
+            Level level = _levelList.get(i);
+            level._first = block;
+            block += level._count;
+            _logger.debug("index level " + i + ": block " + level._first
+                          + "-" + (block - 1));
+        }
+    }
+
+    /**
+     * 上位の階層から順に各階層の一時データを連結してファイルに書き出します。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _writeFile() throws IOException {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(_store.openOutputStream(_file));
+            for (int i = _levelList.size() - 1; i >= 0; i--) {
+                Level level = _levelList.get(i);
+                level._out.close();
+                level._out = null;
+                _store.copyTo(level._file, out);
+            }
+            out.flush();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * 各階層の出力ストリームを閉じ、一時データを削除します。
+     *
+     */
+    private void _deleteLevels() {
+        for (Level level : _levelList) {
+            IOUtils.closeQuietly(level._out);
+            level._out = null;
+            if (_store.exists(level._file) && !_store.delete(level._file)) {
+                _logger.warn("failed to delete file: " + level._file.getPath());
+            }
+        }
+    }
+
+    /**
+     * 記録した参照位置をファイル内の位置に変換して参照情報に登録します。
+     * 検索語セットのタグ番号は、タグごとに一度だけ参照情報のタグ番号に変換します。
+     * インデックス参照の参照先はファイル内のブロック番号 (1から) で登録します。
+     *
+     */
+    private void _putReference() {
+        int file = _ref.getFileId(_file);
+        RefTable bodyRef = _ref.getBodyRef();
+        RefTable headRef = _ref.getHeadRef();
+        RefTable indexRef = _ref.getIndexRef();
+        int ntag = _wordSet.getTagCount();
+        int[] bodyId = new int[ntag];
+        int[] headId = new int[ntag];
+        Arrays.fill(bodyId, -1);
+        for (int i = 0; i < _fixCount; i++) {
+            int level = _fixLevel[i];
+            long pos = _levelList.get(level)._first * BLOCK_SIZE + _fixPos[i];
+            if (level == 0) {
+                int tag = (int)_fixValue[i];
+                if (bodyId[tag] < 0) {
+                    String name = _wordSet.getTag(tag);
+                    bodyId[tag] = _ref.getBodyTag().getId(name);
+                    headId[tag] = _ref.getHeadTag().getId(name);
+                }
+                bodyRef.add(file, pos, bodyId[tag]);
+                headRef.add(file, pos + 6, headId[tag]);
+            } else {
+                long block = _levelList.get(level - 1)._first + _fixValue[i];
+                indexRef.add(file, pos, (int)block);
+            }
         }
     }
 }
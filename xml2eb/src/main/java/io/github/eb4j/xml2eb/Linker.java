@@ -1,17 +1,11 @@
 package io.github.eb4j.xml2eb;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -48,8 +42,14 @@ public class Linker {
 
     /** 参照情報 */
     private Reference _ref = null;
-    /** ファイルマップ */
-    private Map<File, RandomAccessFile> _fileMap = null;
+    /** 一時データ格納 */
+    private SectionStore _store = null;
+    /** ファイル番号ごとの結合後の先頭ブロック (不明な場合は0) */
+    private long[] _fileBlock = null;
+    /** ファイル番号ごとのインデックスファイルかどうか */
+    private boolean[] _index = null;
+    /** ファイル番号ごとの参照修正リスト */
+    private PatchList[] _patch = null;
 
 
     /**
@@ -63,7 +63,7 @@ public class Linker {
         _outfile = file;
         _infile = new File[9];
         _startBlock = new long[9];
-        _fileMap = new HashMap<>();
+        _store = new SectionStore(0L);
     }
 
 
@@ -104,27 +104,27 @@ public class Linker {
     }
 
     /**
-     * 前方一致インデックスベースファイルを設定します。
+     * 前方一致インデックスファイルを設定します。
      *
-     * @param file インデックスベースファイル
+     * @param file インデックスファイル
      */
     public void setWordFile(final File file) {
         _infile[WORD] = file;
     }
 
     /**
-     * 後方一致インデックスベースファイルを設定します。
+     * 後方一致インデックスファイルを設定します。
      *
-     * @param file インデックスベースファイル
+     * @param file インデックスファイル
      */
     public void setEndwordFile(final File file) {
         _infile[ENDWORD] = file;
     }
 
     /**
-     * キーワードインデックスベースファイルを設定します。
+     * キーワードインデックスファイルを設定します。
      *
-     * @param file インデックスベースファイル
+     * @param file インデックスファイル
      */
     public void setKeywordFile(final File file) {
         _infile[KEYWORD] = file;
@@ -158,67 +158,38 @@ public class Linker {
     }
 
     /**
-     * 指定ファイル位置の結合後位置を返します。
+     * 一時データ格納を設定します。
      *
-     * @param pos ファイル位置
-     * @return 結合後のファイル位置
+     * @param store 一時データ格納
      */
-    private long _getPosition(final Position pos) {
-        File file = pos.getFile();
-        int len = _infile.length;
-        for (int i = 0; i < len; i++) {
-            if (file.equals(_infile[i])) {
-                return pos.getPosition(_startBlock[i]);
-            }
-        }
-        _logger.warn("unknown file position: " + pos);
-        return pos.getPosition();
+    void setSectionStore(final SectionStore store) {
+        _store = store;
     }
 
     /**
-     * 指定ファイルがインデックスファイルかどうかを返します。
+     * 指定ファイル位置の結合後位置を返します。
      *
-     * @param file ファイル
-     * @return インデックスファイルの場合はtrue、そうでない場合はfalse
+     * @param file ファイル番号
+     * @param pos ファイル位置
+     * @return 結合後のファイル位置
      */
-    private boolean _isIndex(final File file) {
-        String name = file.getName();
-        for (File aInfile : _infile) {
-            if (aInfile != null) {
-                if (file.equals(aInfile)) {
-                    return false;
-                }
-                String base = aInfile.getName();
-                if (name.startsWith(base)) {
-                    return true;
-                }
-            }
+    private long _getPosition(final int file, final long pos) {
+        long start = _fileBlock[file];
+        if (start <= 0) {
+            _logger.warn("unknown file position: " + new Position(_ref.getFile(file), pos));
+            return pos;
         }
-        return false;
+        return pos + (start - 1) * 2048;
     }
 
     /**
-     * ファイルリストを返します。
+     * 指定ファイルがインデックスファイルかどうかを返します。
      *
-     * @param file ベースファイル
-     * @return ファイルリスト
+     * @param file ファイル番号
+     * @return インデックスファイルの場合はtrue、そうでない場合はfalse
      */
-    private File[] _getFileList(final File file) {
-        ArrayList<File> list = new ArrayList<File>();
-        String name = file.getName();
-        File dir = file.getParentFile();
-        if (dir == null) {
-            dir = new File(".");
-        }
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file1 : files) {
-                if (file1.getName().startsWith(name)) {
-                    list.add(file1);
-                }
-            }
-        }
-        return list.toArray(new File[list.size()]);
+    private boolean _isIndex(final int file) {
+        return _index[file];
     }
 
     /**
@@ -226,22 +197,11 @@ public class Linker {
      *
      */
     public void delete() {
-        int len = _infile.length;
-        for (int i = 0; i < len; i++) {
-            if (_infile[i] != null) {
-                if (_infile[i].exists()) {
-                    _logger.info("delete file" + _infile[i].getPath());
-                    if (!_infile[i].delete()) {
-                        _logger.error("failed to delete file: " + _infile[i].getPath());
-                    }
-                } else {
-                    File[] files = _getFileList(_infile[i]);
-                    for (File file : files) {
-                        _logger.info("delete file" + file.getPath());
-                        if (!file.delete()) {
-                            _logger.error("failed to delete file: " + file.getPath());
-                        }
-                    }
+        for (File file : _infile) {
+            if (file != null && _store.exists(file)) {
+                _logger.info("delete file" + file.getPath());
+                if (!_store.delete(file)) {
+                    _logger.error("failed to delete file: " + file.getPath());
                 }
             }
         }
@@ -302,7 +262,7 @@ public class Linker {
         if (_infile[WORD] != null) {
             _logger.debug("word start block: 0x" + HexUtil.toHexString(block));
             _startBlock[WORD] = block;
-            size = _setControlEntry(control, off, _getFileList(_infile[WORD]),
+            size = _setControlEntry(control, off, _infile[WORD],
                                     0x91, block, 0x02415554);
             off += 16;
             cnt++;
@@ -311,7 +271,7 @@ public class Linker {
         if (_infile[ENDWORD] != null) {
             _logger.debug("endword start block: 0x" + HexUtil.toHexString(block));
             _startBlock[ENDWORD] = block;
-            size = _setControlEntry(control, off, _getFileList(_infile[ENDWORD]),
+            size = _setControlEntry(control, off, _infile[ENDWORD],
                                     0x71, block, 0x02415554);
             off += 16;
             cnt++;
@@ -320,7 +280,7 @@ public class Linker {
         if (_infile[KEYWORD] != null) {
             _logger.debug("keyword start block: 0x" + HexUtil.toHexString(block));
             _startBlock[KEYWORD] = block;
-            size = _setControlEntry(control, off, _getFileList(_infile[KEYWORD]),
+            size = _setControlEntry(control, off, _infile[KEYWORD],
                                     0x80, block, 0x02415554);
             off += 16;
             cnt++;
@@ -346,36 +306,43 @@ public class Linker {
         control[1] = (byte)(cnt & 0xff);
 
         // 参照情報を解決する
-        _fixBodyReference();
-        _fixHeadReference();
+        _setFileTable();
+        _fixReference(_ref.getBodyRef(), _ref.getBodyTag(), "body");
+        _fixReference(_ref.getHeadRef(), _ref.getHeadTag(), "head");
         _fixIndexReference();
-        _fixGraphicReference();
+        _fixReference(_ref.getGraphicRef(), _ref.getGraphicTag(), "graphic");
         _fixSoundReference();
 
-        // ストリームを閉じる
-        for (RandomAccessFile stream : _fileMap.values()) {
+        // 参照情報をファイルに反映する
+        for (PatchList patch : _patch) {
+            if (patch == null) {
+                continue;
+            }
             try {
-                stream.close();
-            } catch (IOException ignored) {
+                _store.apply(patch);
+            } catch (IOException e) {
+                _logger.error(e.getMessage(), e);
             }
         }
-        _fileMap.clear();
+        _patch = null;
 
         // ファイルの結合
         _logger.info("link file: " + _outfile.getPath());
-        BlockOutputStream out = null;
+        FileOutputStream out = null;
         try {
-            out =
-                new BlockOutputStream(
-                    new BufferedOutputStream(
-                        new FileOutputStream(_outfile)));
-            out.write(control, 0, control.length);
-            out.flush();
+            out = new FileOutputStream(_outfile);
+            FileChannel channel = out.getChannel();
+            _write(channel, control, control.length);
             for (File aInfile : _infile) {
                 if (aInfile != null) {
-                    _link(out, aInfile);
+                    _link(channel, aInfile);
                 }
             }
+            // ブロック境界までゼロで埋める
+            int pad = (int)(channel.position() % 2048);
+            if (pad > 0) {
+                _write(channel, new byte[2048], 2048 - pad);
+            }
         } catch (IOException e) {
             _logger.error(e.getMessage(), e);
         } finally {
@@ -384,20 +351,19 @@ public class Linker {
     }
 
     /**
-     * 書籍管理情報を設定します。
+     * 指定されたバイト配列の先頭から指定されたバイト数をチャネルに書き込みます。
      *
-     * @param b 書籍管理情報
-     * @param off 設定位置
-     * @param file データファイル
-     * @param id 書籍構成要素識別子
-     * @param start 先頭ブロック
-     * @param param パラメータ
-     * @return この書籍構成要素のブロック数
+     * @param channel 出力チャネル
+     * @param b バイト配列
+     * @param len 書き込むバイト数
+     * @exception IOException 入出力エラーが発生した場合
      */
-    private long _setControlEntry(final byte[] b, final int off, final File file,
-                                  final int id, final long start, final long param) {
-        File[] files = {file};
-        return _setControlEntry(b, off, files, id, start, param);
+    private void _write(final FileChannel channel, final byte[] b, final int len)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b, 0, len);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
     }
 
     /**
@@ -411,14 +377,10 @@ public class Linker {
      * @param param パラメータ
      * @return この書籍構成要素のブロック数
      */
-    private long _setControlEntry(final byte[] b, final int off, final File[] file,
+    private long _setControlEntry(final byte[] b, final int off, final File file,
                                   final int id, final long start, final long param) {
-        long size = 0;
+        long size = (_store.length(file) + 2047) / 2048;
         int offset = off;
-        for (File aFile : file) {
-            long len = aFile.length();
-            size += ((len + 2047) / 2048);
-        }
         b[offset++] = (byte)id;
         b[offset++] = (byte)0x00;
         b[offset++] = (byte)((start >>> 24) & 0xff);
@@ -437,39 +399,45 @@ public class Linker {
     }
 
     /**
-     * 本文参照を修正します。
+     * 参照情報のファイル番号ごとの結合後の位置を求めます。
      *
      */
-    private void _fixBodyReference() {
-        Map<Position, String> map = _ref.getBodyRef();
-        _logger.info("resolve body reference: " + map.size());
-        for (Map.Entry<Position, String> entry : map.entrySet()) {
-            Position pos = entry.getKey();
-            String tag = entry.getValue();
-            if (_ref.hasBodyTag(tag)) {
-                Position tpos = _ref.getBodyTag(tag);
-                _fixPosition(pos, _getPosition(tpos));
-            } else {
-                _logger.error("undefined body tag: " + tag);
+    private void _setFileTable() {
+        int n = _ref.getFileCount();
+        _fileBlock = new long[n];
+        _index = new boolean[n];
+        _patch = new PatchList[n];
+        for (int i = 0; i < n; i++) {
+            File file = _ref.getFile(i);
+            int len = _infile.length;
+            for (int j = 0; j < len; j++) {
+                if (file.equals(_infile[j])) {
+                    _fileBlock[i] = _startBlock[j];
+                    break;
+                }
             }
+            _index[i] = file.equals(_infile[WORD]) || file.equals(_infile[ENDWORD])
+                || file.equals(_infile[KEYWORD]);
         }
     }
 
     /**
-     * 見出し参照を修正します。
+     * 本文、見出しおよび画像の参照を修正します。
      *
+     * @param refs 参照位置
+     * @param tags 参照先のタグ位置
+     * @param type 参照種別の名称
      */
-    private void _fixHeadReference() {
-        Map<Position, String> map = _ref.getHeadRef();
-        _logger.info("resolve head reference: " + map.size());
-        for (Map.Entry<Position, String> entry : map.entrySet()) {
-            Position pos = entry.getKey();
-            String tag = entry.getValue();
-            if (_ref.hasHeadTag(tag)) {
-                Position tpos = _ref.getHeadTag(tag);
-                _fixPosition(pos, _getPosition(tpos));
+    private void _fixReference(final RefTable refs, final TagTable tags, final String type) {
+        int len = refs.size();
+        _logger.info("resolve " + type + " reference: " + len);
+        for (int i = 0; i < len; i++) {
+            int tag = refs.getTag(i);
+            if (tags.isDefined(tag)) {
+                long target = _getPosition(tags.getFile(tag), tags.getPosition(tag));
+                _fixPosition(refs.getFile(i), refs.getPosition(i), target);
             } else {
-                _logger.error("undefined head tag: " + tag);
+                _logger.error("undefined " + type + " tag: " + tags.getName(tag));
             }
         }
     }
@@ -479,31 +447,11 @@ public class Linker {
      *
      */
     private void _fixIndexReference() {
-        Map<Position, String> map = _ref.getIndexRef();
-        _logger.info("resolve index reference: " + map.size());
-        for (Map.Entry<Position, String> entry : map.entrySet()) {
-            Position pos = entry.getKey();
-            String tag = entry.getValue();
-            _fixPosition(pos, tag);
-        }
-    }
-
-    /**
-     * 画像参照を修正します。
-     *
-     */
-    private void _fixGraphicReference() {
-        Map<Position, String> map = _ref.getGraphicRef();
-        _logger.info("resolve graphic reference: " + map.size());
-        for (Map.Entry<Position, String> entry : map.entrySet()) {
-            Position pos = entry.getKey();
-            String tag = entry.getValue();
-            if (_ref.hasGraphicTag(tag)) {
-                Position tpos = _ref.getGraphicTag(tag);
-                _fixPosition(pos, _getPosition(tpos));
-            } else {
-                _logger.error("undefined graphic tag: " + tag);
-            }
+        RefTable refs = _ref.getIndexRef();
+        int len = refs.size();
+        _logger.info("resolve index reference: " + len);
+        for (int i = 0; i < len; i++) {
+            _fixIndexPosition(refs.getFile(i), refs.getPosition(i), refs.getTag(i));
         }
     }
 
@@ -512,16 +460,19 @@ public class Linker {
      *
      */
     private void _fixSoundReference() {
-        Map<Position, String> map = _ref.getSoundRef();
-        _logger.info("resolve sound reference:" + map.size());
-        for (Map.Entry<Position, String> entry : map.entrySet()) {
-            Position pos = entry.getKey();
-            String tag = entry.getValue();
-            if (_ref.hasSoundTag(tag)) {
-                Position[] tpos = _ref.getSoundTag(tag);
-                _fixPosition(pos, _getPosition(tpos[0]), _getPosition(tpos[1]));
+        RefTable refs = _ref.getSoundRef();
+        TagTable tags = _ref.getSoundTag();
+        int len = refs.size();
+        _logger.info("resolve sound reference:" + len);
+        for (int i = 0; i < len; i++) {
+            int tag = refs.getTag(i);
+            if (tags.isDefined(tag)) {
+                int file = tags.getFile(tag);
+                long start = _getPosition(file, tags.getPosition(tag));
+                long end = _getPosition(file, tags.getEndPosition(tag));
+                _fixPosition(refs.getFile(i), refs.getPosition(i), start, end);
             } else {
-                _logger.error("undefined sound tag: " + tag);
+                _logger.error("undefined sound tag: " + tags.getName(tag));
             }
         }
     }
@@ -529,196 +480,90 @@ public class Linker {
     /**
      * ファイルの参照情報を修正します。
      *
+     * @param file ファイル番号
      * @param pos ファイル位置
      * @param target 参照先
      */
-    private void _fixPosition(final Position pos, final long target) {
-        File file = pos.getFile();
-        byte[] b = new byte[6];
+    private void _fixPosition(final int file, final long pos, final long target) {
         long block = target / 2048 + 1;
         int off = (int)(target % 2048);
         if (!_isIndex(file)) {
             block = _toBCD4(block);
             off = _toBCD2(off);
         }
-        b[0] = (byte)((block >>> 24) & 0xff);
-        b[1] = (byte)((block >>> 16) & 0xff);
-        b[2] = (byte)((block >>> 8) & 0xff);
-        b[3] = (byte)(block & 0xff);
-        b[4] = (byte)((off >>> 8) & 0xff);
-        b[5] = (byte)(off & 0xff);
-        try {
-            RandomAccessFile stream = _fileMap.get(file);
-            if (stream == null) {
-                stream = new RandomAccessFile(file, "rw");
-                _fileMap.put(file, stream);
-            }
-            stream.seek(pos.getPosition());
-            stream.write(b, 0, b.length);
-        } catch (IOException e) {
-            _logger.error(e.getMessage(), e);
-        }
+        _getPatchList(file).add(pos, (block << 16) | off, 6);
     }
 
     /**
      * ファイルの参照情報を修正します。
      *
+     * @param file ファイル番号
      * @param pos ファイル位置
      * @param start 参照先開始位置
      * @param end 参照先終了位置
      */
-    private void _fixPosition(final Position pos, final long start, final long end) {
-        byte[] b = new byte[12];
-        long block = start / 2048 + 1;
-        int off = (int)(start % 2048);
-        block = _toBCD4(block);
-        off = _toBCD2(off);
-        b[0] = (byte)((block >>> 24) & 0xff);
-        b[1] = (byte)((block >>> 16) & 0xff);
-        b[2] = (byte)((block >>> 8) & 0xff);
-        b[3] = (byte)(block & 0xff);
-        b[4] = (byte)((off >>> 8) & 0xff);
-        b[5] = (byte)(off & 0xff);
-        block = end / 2048 + 1;
-        off = (int)(end % 2048);
-        block = _toBCD4(block);
-        off = _toBCD2(off);
-        b[6] = (byte)((block >>> 24) & 0xff);
-        b[7] = (byte)((block >>> 16) & 0xff);
-        b[8] = (byte)((block >>> 8) & 0xff);
-        b[9] = (byte)(block & 0xff);
-        b[10] = (byte)((off >>> 8) & 0xff);
-        b[11] = (byte)(off & 0xff);
-        try {
-            File file = pos.getFile();
-            RandomAccessFile stream = _fileMap.get(file);
-            if (stream == null) {
-                stream = new RandomAccessFile(file, "rw");
-                _fileMap.put(file, stream);
-            }
-            stream.seek(pos.getPosition());
-            stream.write(b, 0, b.length);
-        } catch (IOException e) {
-            _logger.error(e.getMessage(), e);
-        }
+    private void _fixPosition(final int file, final long pos, final long start, final long end) {
+        PatchList patch = _getPatchList(file);
+        long block = _toBCD4(start / 2048 + 1);
+        int off = _toBCD2((int)(start % 2048));
+        patch.add(pos, (block << 16) | off, 6);
+        block = _toBCD4(end / 2048 + 1);
+        off = _toBCD2((int)(end % 2048));
+        patch.add(pos + 6, (block << 16) | off, 6);
     }
 
     /**
-     * ファイルの参照情報を修正します。
+     * インデックスファイルの参照情報を修正します。
      *
+     * @param file ファイル番号
      * @param pos ファイル位置
-     * @param tag インデックスタグ
+     * @param tag 参照先のインデックスファイル内のブロック番号 (1から)
      */
-    private void _fixPosition(final Position pos, final String tag) {
-        File file = pos.getFile();
-        File dir = file.getParentFile();
-        if (dir == null) {
-            dir = new File(".");
-        }
-        String name = file.getName();
-        String base = null;
-        int level = 0;
-        long block = 0;
-        try {
-            int idx = name.lastIndexOf(".");
-            level = Integer.parseInt(name.substring(idx + 1));
-            base = name.substring(0, idx);
-            block = Integer.parseInt(tag);
-        } catch (NumberFormatException e) {
-            _logger.warn(e.getMessage(), e);
-        }
-        if (level <= 0) {
-            _logger.error("unknown index file: " + name);
+    private void _fixIndexPosition(final int file, final long pos, final long tag) {
+        long start = _fileBlock[file];
+        if (!_isIndex(file) || start <= 0) {
+            _logger.error("unknown index file: " + _ref.getFile(file).getName());
             return;
         }
-        if (block <= 0) {
+        if (tag <= 0) {
             _logger.error("unknown index tag: " + tag);
             return;
         }
-        long size = 0;
-        File[] indexFile = _getFileList(new File(dir, base));
-        Arrays.sort(indexFile);
-        int len = indexFile.length;
-        for (int i = len - 1; i >= 0; i--) {
-            try {
-                String str = indexFile[i].getName();
-                int idx = str.lastIndexOf(".");
-                int no = Integer.parseInt(str.substring(idx + 1));
-                if (no < level) {
-                    break;
-                }
-                size += indexFile[i].length();
-            } catch (NumberFormatException e) {
-                _logger.warn(e.getMessage(), e);
-            }
+        long block = start + tag - 1;
+        if (_logger.isDebugEnabled()) {
+            _logger.debug(new Position(_ref.getFile(file), pos)
+                          + ": 0x" + HexUtil.toHexString(block) + " tag=" + tag);
         }
-        block += (size / 2048);
-        if (_infile[WORD] != null
-            && base.equals(_infile[WORD].getName())) {
-            block += _startBlock[WORD];
-        } else if (_infile[ENDWORD] != null
-                   && base.equals(_infile[ENDWORD].getName())) {
-            block += _startBlock[ENDWORD];
-        } else if (_infile[KEYWORD] != null
-                   && base.equals(_infile[KEYWORD].getName())) {
-            block += _startBlock[KEYWORD];
-        } else {
-            _logger.error("unknown index file: " + name);
-            return;
-        }
-        block--;
-        _logger.debug(pos + ": 0x" + HexUtil.toHexString(block) + " tag=" + tag);
-        byte[] b = new byte[4];
-        b[0] = (byte)((block >>> 24) & 0xff);
-        b[1] = (byte)((block >>> 16) & 0xff);
-        b[2] = (byte)((block >>> 8) & 0xff);
-        b[3] = (byte)(block & 0xff);
-        try {
-            RandomAccessFile stream = _fileMap.get(file);
-            if (stream == null) {
-                stream = new RandomAccessFile(file, "rw");
-                _fileMap.put(file, stream);
-            }
-            stream.seek(pos.getPosition());
-            stream.write(b, 0, b.length);
-        } catch (IOException e) {
-            _logger.error(e.getMessage(), e);
+        _getPatchList(file).add(pos, block, 4);
+    }
+
+    /**
+     * 指定されたファイルの参照修正リストを返します。
+     *
+     * @param file ファイル番号
+     * @return 参照修正リスト
+     */
+    private PatchList _getPatchList(final int file) {
+        PatchList patch = _patch[file];
+        if (patch == null) {
+            patch = new PatchList(_ref.getFile(file));
+            _patch[file] = patch;
         }
+        return patch;
     }
 
     /**
-     * 指定されたファイルの内容を指定されたストリームに出力します。
+     * 指定されたファイルの内容を指定されたチャネルに出力します。
      *
-     * @param out 出力ストリーム
+     * @param out 出力チャネル
      * @param file ファイル
      */
-    private void _link(final OutputStream out, final File file) {
-        if (!file.exists()) {
-            File[] files = _getFileList(file);
-            Arrays.sort(files);
-            int len = files.length;
-            for (int i = len - 1; i >= 0; i--) {
-                _link(out, files[i]);
-            }
-            return;
-        }
+    private void _link(final FileChannel out, final File file) {
         _logger.info("link file: " + file.getPath());
-        byte[] b = new byte[2048];
-        int n;
-        BufferedInputStream bis = null;
         try {
-            bis = new BufferedInputStream(new FileInputStream(file));
-            while (true) {
-                n = bis.read(b, 0, b.length);
-                if (n < 0) {
-                    break;
-                }
-                out.write(b, 0, n);
-            }
+            _store.transferTo(file, out);
         } catch (IOException e) {
             _logger.error(e.getMessage(), e);
-        } finally {
-            IOUtils.closeQuietly(bis);
         }
     }
 
@@ -0,0 +1,252 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.eb4j.xml2eb.util.SortUtil;
+
+/**
+ * 参照修正リストクラス。
+ * <p>
+ * 1つのファイルに対する参照位置の書き換えを蓄積し、
+ * 位置の順に並べ替えてから、ファイルを先頭から順に書き直しながらまとめて反映します。
+ * 範囲外の書き換え位置はエラーを記録して読み飛ばします。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+class PatchList {
+
+    /** 初期容量 */
+    private static final int INITIAL_CAPACITY = 256;
+    /** 書き直しに使用するバッファのバイト数 */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** ログ */
+    private Logger _logger = null;
+    /** ファイル */
+    private File _file = null;
+    /** 書き換え位置 */
+    private long[] _pos = null;
+    /** 書き換える値 */
+    private long[] _value = null;
+    /** 書き換えるバイト数 */
+    private byte[] _len = null;
+    /** 登録数 */
+    private int _count = 0;
+
+
+    /**
+     * コンストラクタ。
+     *
+     * @param file ファイル
+     */
+    PatchList(final File file) {
+        super();
+        _logger = LoggerFactory.getLogger(getClass());
+        _file = file;
+        _pos = new long[INITIAL_CAPACITY];
+        _value = new long[INITIAL_CAPACITY];
+        _len = new byte[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * 書き換えを登録します。
+     * 値は指定されたバイト数のビッグエンディアンで書き込まれます。
+     *
+     * @param pos 書き換え位置
+     * @param value 値
+     * @param len バイト数 (1から8)
+     */
+    void add(final long pos, final long value, final int len) {
+        if (_count >= _pos.length) {
+            int size = _pos.length * 2;
+            _pos = Arrays.copyOf(_pos, size);
+            _value = Arrays.copyOf(_value, size);
+            _len = Arrays.copyOf(_len, size);
+        }
+        _pos[_count] = pos;
+        _value[_count] = value;
+        _len[_count] = (byte)len;
+        _count++;
+    }
+
+    /**
+     * ファイルを返します。
+     *
+     * @return ファイル
+     */
+    File getFile() {
+        return _file;
+    }
+
+    /**
+     * 登録数を返します。
+     *
+     * @return 登録数
+     */
+    int size() {
+        return _count;
+    }
+
+    /**
+     * 登録された書き換えをファイルに反映します。
+     * 書き換えた内容を一時ファイルに順に書き出し、元のファイルと置き換えます。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    void apply() throws IOException {
+        if (_count == 0) {
+            return;
+        }
+        _logger.debug("patch file: " + _file.getPath() + " (" + _count + ")");
+        long fileSize = _file.length();
+        int[] order = _validate(_sort(), fileSize);
+        int count = order.length;
+        File tmp = new File(_file.getPath() + ".patch");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(_file);
+            out = new FileOutputStream(tmp);
+            byte[] buf = new byte[BUFFER_SIZE];
+            long start = 0L;
+            int first = 0;
+            while (start < fileSize) {
+                int n = _read(in, buf);
+                if (n <= 0) {
+                    throw new IOException("unexpected end of file: " + _file.getPath());
+                }
+                long end = start + n;
+                for (int i = first; i < count; i++) {
+                    int idx = order[i];
+                    if (_pos[idx] >= end) {
+                        break;
+                    }
+                    _put(buf, start, end, idx);
+                }
+                // バッファの境界をまたぐ書き換えは次のバッファでも反映する
+                while (first < count && _pos[order[first]] + _len[order[first]] <= end) {
+                    first++;
+                }
+                out.write(buf, 0, n);
+                start = end;
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+        if (!_file.delete()) {
+            tmp.delete();
+            throw new IOException("failed to delete file: " + _file.getPath());
+        }
+        if (!tmp.renameTo(_file)) {
+            throw new IOException("failed to rename file: " + tmp.getPath());
+        }
+    }
+
+    /**
+     * 登録された書き換えをメモリ上の一時データに反映します。
+     *
+     * @param section メモリ上の一時データ
+     */
+    void apply(final SectionStore.Section section) {
+        if (_count == 0) {
+            return;
+        }
+        _logger.debug("patch section: " + _file.getPath() + " (" + _count + ")");
+        int[] order = _validate(_sort(), section.getSize());
+        for (int idx : order) {
+            try {
+                section.put(_pos[idx], _value[idx], _len[idx]);
+            } catch (IOException e) {
+                _logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 範囲外の書き換えを取り除いた登録順の番号を返します。
+     * 取り除いた書き換えはエラーを記録します。
+     *
+     * @param order 書き換え位置の順に並べた登録順の番号の配列
+     * @param size データサイズ
+     * @return 範囲内の書き換えの登録順の番号の配列
+     */
+    private int[] _validate(final int[] order, final long size) {
+        int n = 0;
+        for (int idx : order) {
+            if (_pos[idx] < 0 || _pos[idx] + _len[idx] > size) {
+                _logger.error("invalid patch position: " + _file.getName() + ":" + _pos[idx]);
+                continue;
+            }
+            order[n++] = idx;
+        }
+        return n == order.length ? order : Arrays.copyOf(order, n);
+    }
+
+    /**
+     * 書き換えのうちバッファの範囲内にあるバイトをバッファに書き込みます。
+     *
+     * @param buf バッファ
+     * @param start バッファの先頭のファイル上の位置
+     * @param end バッファの末尾のファイル上の位置
+     * @param idx 登録順の番号
+     */
+    private void _put(final byte[] buf, final long start, final long end, final int idx) {
+        long value = _value[idx];
+        for (int k = _len[idx] - 1; k >= 0; k--) {
+            long p = _pos[idx] + k;
+            if (p >= start && p < end) {
+                buf[(int)(p - start)] = (byte)value;
+            }
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * バッファが一杯になるか入力の終わりに達するまで読み込みます。
+     *
+     * @param in 入力ストリーム
+     * @param buf バッファ
+     * @return 読み込んだバイト数 (入力の終わりの場合は-1)
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private static int _read(final InputStream in, final byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int n = in.read(buf, total, buf.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * 書き換え位置の順に並べた登録順の番号を返します。
+     *
+     * @return 登録順の番号の配列
+     */
+    private int[] _sort() {
+        final long[] pos = _pos;
+        return SortUtil.sortedIndex(_count, new SortUtil.IndexComparator() {
+                @Override
+                public int compare(final int i, final int j) {
+                    return Long.compare(pos[i], pos[j]);
+                }
+            });
+    }
+}
+
+// end of PatchList.java
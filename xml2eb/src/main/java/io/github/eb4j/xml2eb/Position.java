@@ -77,6 +77,34 @@ public class Position {
         return (int)(_pos % 2048);
     }
 
+    /**
+     * このオブジェクトと指定されたオブジェクトが等しいかどうかを返します。
+     *
+     * @param obj 比較するオブジェクト
+     * @return 同じファイルの同じ位置を表す場合はtrue、そうでない場合はfalse
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Position)) {
+            return false;
+        }
+        Position pos = (Position)obj;
+        return _pos == pos._pos && _file.equals(pos._file);
+    }
+
+    /**
+     * ハッシュコード値を返します。
+     *
+     * @return ハッシュコード値
+     */
+    @Override
+    public int hashCode() {
+        return _file.hashCode() * 31 + (int)(_pos ^ (_pos >>> 32));
+    }
+
     /**
      * 文字列表現を返します。
      *
@@ -0,0 +1,100 @@
+package io.github.eb4j.xml2eb;
+
+import java.util.Arrays;
+
+/**
+ * 参照位置テーブルクラス。
+ * <p>
+ * 参照を書き込んだファイル番号、位置および参照先のタグ番号を
+ * 登録順にプリミティブ配列で保持します。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+public class RefTable {
+
+    /** 初期容量 */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** ファイル番号 */
+    private int[] _file = null;
+    /** 位置 */
+    private long[] _pos = null;
+    /** タグ番号 */
+    private int[] _tag = null;
+    /** 登録数 */
+    private int _count = 0;
+
+
+    /**
+     * コンストラクタ。
+     *
+     */
+    public RefTable() {
+        super();
+        _file = new int[INITIAL_CAPACITY];
+        _pos = new long[INITIAL_CAPACITY];
+        _tag = new int[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * 参照位置を登録します。
+     *
+     * @param file ファイル番号
+     * @param pos 位置
+     * @param tag タグ番号
+     */
+    public void add(final int file, final long pos, final int tag) {
+        if (_count >= _pos.length) {
+            int size = _pos.length * 2;
+            _file = Arrays.copyOf(_file, size);
+            _pos = Arrays.copyOf(_pos, size);
+            _tag = Arrays.copyOf(_tag, size);
+        }
+        _file[_count] = file;
+        _pos[_count] = pos;
+        _tag[_count] = tag;
+        _count++;
+    }
+
+    /**
+     * 登録数を返します。
+     *
+     * @return 登録数
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * 指定された参照位置のファイル番号を返します。
+     *
+     * @param index 登録順の番号
+     * @return ファイル番号
+     */
+    public int getFile(final int index) {
+        return _file[index];
+    }
+
+    /**
+     * 指定された参照位置の位置を返します。
+     *
+     * @param index 登録順の番号
+     * @return 位置
+     */
+    public long getPosition(final int index) {
+        return _pos[index];
+    }
+
+    /**
+     * 指定された参照位置のタグ番号を返します。
+     *
+     * @param index 登録順の番号
+     * @return タグ番号
+     */
+    public int getTag(final int index) {
+        return _tag[index];
+    }
+}
+
+// end of RefTable.java
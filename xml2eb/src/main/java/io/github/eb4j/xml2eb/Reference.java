@@ -1,27 +1,56 @@
 package io.github.eb4j.xml2eb;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import javax.sound.sampled.AudioFormat;
 
 /**
  * 参照情報クラス。
+ * <p>
+ * タグの位置と参照位置は種別ごとのテーブルに保持します。
+ * ファイルはファイル番号、タグはテーブルごとのタグ番号で表します。
  *
  * @author Hisaya FUKUMOTO
  */
 public class Reference {
 
-    /** 外字マップ */
-    private Map<String, Integer> _charMap = null;
-    /** タグマップ */
-    private Map<String, Position> _tagMap = null;
-    /** 種別マップ */
-    private Map<String, String> _formatMap = null;
+    /** 半角外字マップ */
+    private Map<String, Integer> _narrowMap = null;
+    /** 全角外字マップ */
+    private Map<String, Integer> _wideMap = null;
+    /** ファイル番号マップ */
+    private Map<File, Integer> _fileMap = null;
+    /** ファイルリスト */
+    private List<File> _fileList = null;
+    /** 見出し位置テーブル */
+    private TagTable _headTag = null;
+    /** 本文位置テーブル */
+    private TagTable _bodyTag = null;
+    /** 画像データ位置テーブル */
+    private TagTable _graphicTag = null;
+    /** 音声データ位置テーブル */
+    private TagTable _soundTag = null;
+    /** 画像フォーマットマップ */
+    private Map<String, String> _graphicFormatMap = null;
+    /** 音声種別マップ */
+    private Map<String, String> _soundFormatMap = null;
     /** 音声フォーマットマップ */
     private Map<String, AudioFormat> _audioFormatMap = null;
-    /** 参照リスト */
-    private Map<Position, String> _refMap = null;
+    /** 見出し参照テーブル */
+    private RefTable _headRef = null;
+    /** 本文参照テーブル */
+    private RefTable _bodyRef = null;
+    /** インデックス参照テーブル */
+    private RefTable _indexRef = null;
+    /** 画像参照テーブル */
+    private RefTable _graphicRef = null;
+    /** 音声参照テーブル */
+    private RefTable _soundRef = null;
+    /** 定義を参照する参照情報 (存在しない場合はnull) */
+    private Reference _parent = null;
 
 
     /**
@@ -30,11 +59,39 @@ public class Reference {
      */
     public Reference() {
         super();
-        _charMap = new HashMap<>();
-        _tagMap = new HashMap<>();
-        _formatMap = new HashMap<>();
+        _narrowMap = new HashMap<>();
+        _wideMap = new HashMap<>();
+        _fileMap = new HashMap<>();
+        _fileList = new ArrayList<>();
+        _headTag = new TagTable();
+        _bodyTag = new TagTable();
+        _graphicTag = new TagTable();
+        _soundTag = new TagTable();
+        _graphicFormatMap = new HashMap<>();
+        _soundFormatMap = new HashMap<>();
         _audioFormatMap = new HashMap<>();
-        _refMap = new HashMap<>();
+        _headRef = new RefTable();
+        _bodyRef = new RefTable();
+        _indexRef = new RefTable();
+        _graphicRef = new RefTable();
+        _soundRef = new RefTable();
+    }
+
+    /**
+     * 外字、画像および音声の定義を指定された参照情報と共有するコンストラクタ。
+     * 定義は参照のみを行い、参照位置とタグ位置は個別に保持します。
+     * 共有する定義は、この参照情報を使用している間に変更してはいけません。
+     *
+     * @param parent 定義を参照する参照情報
+     */
+    public Reference(final Reference parent) {
+        this();
+        _parent = parent;
+        _narrowMap = parent._narrowMap;
+        _wideMap = parent._wideMap;
+        _graphicFormatMap = parent._graphicFormatMap;
+        _soundFormatMap = parent._soundFormatMap;
+        _audioFormatMap = parent._audioFormatMap;
     }
 
     /**
@@ -44,8 +101,7 @@ public class Reference {
      * @param code 外字コード
      */
     public void putNarrowChar(final String name, final int code) {
-        String key = "narrow:" + name;
-        _charMap.put(key, Integer.valueOf(code));
+        _narrowMap.put(name, Integer.valueOf(code));
     }
 
     /**
@@ -55,8 +111,7 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasNarrowChar(final String name) {
-        String key = "narrow:" + name;
-        return _charMap.containsKey(key);
+        return _narrowMap.containsKey(name);
     }
 
     /**
@@ -66,8 +121,7 @@ public class Reference {
      * @return 外字コード
      */
     public int getNarrowChar(final String name) {
-        String key = "narrow:" + name;
-        Integer code = _charMap.get(key);
+        Integer code = _narrowMap.get(name);
         if (code == null) {
             return -1;
         }
@@ -81,8 +135,7 @@ public class Reference {
      * @param code 外字コード
      */
     public void putWideChar(final String name, final int code) {
-        String key = "wide:" + name;
-        _charMap.put(key, Integer.valueOf(code));
+        _wideMap.put(name, Integer.valueOf(code));
     }
 
     /**
@@ -92,8 +145,7 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasWideChar(final String name) {
-        String key = "wide:" + name;
-        return _charMap.containsKey(key);
+        return _wideMap.containsKey(name);
     }
 
     /**
@@ -103,14 +155,50 @@ public class Reference {
      * @return 外字コード
      */
     public int getWideChar(final String name) {
-        String key = "wide:" + name;
-        Integer code = _charMap.get(key);
+        Integer code = _wideMap.get(name);
         if (code == null) {
             return -1;
         }
         return code.intValue();
     }
 
+    /**
+     * 指定されたファイルのファイル番号を返します。
+     * 番号が割り当てられていない場合は新たに割り当てます。
+     *
+     * @param file ファイル
+     * @return ファイル番号
+     */
+    public int getFileId(final File file) {
+        Integer id = _fileMap.get(file);
+        if (id != null) {
+            return id.intValue();
+        }
+        int n = _fileList.size();
+        _fileMap.put(file, Integer.valueOf(n));
+        _fileList.add(file);
+        return n;
+    }
+
+    /**
+     * 指定されたファイル番号のファイルを返します。
+     *
+     * @param id ファイル番号
+     * @return ファイル
+     */
+    public File getFile(final int id) {
+        return _fileList.get(id);
+    }
+
+    /**
+     * 登録されているファイルの数を返します。
+     *
+     * @return ファイルの数
+     */
+    public int getFileCount() {
+        return _fileList.size();
+    }
+
     /**
      * 見出し位置を登録します。
      *
@@ -119,8 +207,7 @@ public class Reference {
      * @param pos 開始位置
      */
     public void putHeadTag(final String name, final File file, final long pos) {
-        String key = "head:" + name;
-        _tagMap.put(key, new Position(file, pos));
+        _headTag.put(name, getFileId(file), pos, pos);
     }
 
     /**
@@ -130,19 +217,16 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasHeadTag(final String name) {
-        String key = "head:" + name;
-        return _tagMap.containsKey(key);
+        return _headTag.has(name);
     }
 
     /**
-     * 見出し位置を返します。
+     * 見出し位置テーブルを返します。
      *
-     * @param name タグ名称
-     * @return 開始位置
+     * @return 見出し位置テーブル
      */
-    public Position getHeadTag(final String name) {
-        String key = "head:" + name;
-        return _tagMap.get(key);
+    public TagTable getHeadTag() {
+        return _headTag;
     }
 
     /**
@@ -153,8 +237,7 @@ public class Reference {
      * @param pos 開始位置
      */
     public void putBodyTag(final String name, final File file, final long pos) {
-        String key = "body:" + name;
-        _tagMap.put(key, new Position(file, pos));
+        _bodyTag.put(name, getFileId(file), pos, pos);
     }
 
     /**
@@ -164,19 +247,16 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasBodyTag(final String name) {
-        String key = "body:" + name;
-        return _tagMap.containsKey(key);
+        return _bodyTag.has(name);
     }
 
     /**
-     * 本文位置を返します。
+     * 本文位置テーブルを返します。
      *
-     * @param name タグ名称
-     * @return 開始位置
+     * @return 本文位置テーブル
      */
-    public Position getBodyTag(final String name) {
-        String key = "body:" + name;
-        return _tagMap.get(key);
+    public TagTable getBodyTag() {
+        return _bodyTag;
     }
 
     /**
@@ -189,9 +269,8 @@ public class Reference {
      */
     public void putGraphicTag(final String name, final String format, final File file,
                               final long pos) {
-        String key = "graphic:" + name;
-        _tagMap.put(key, new Position(file, pos));
-        _formatMap.put(key, format);
+        _graphicTag.put(name, getFileId(file), pos, pos);
+        _graphicFormatMap.put(name, format);
     }
 
     /**
@@ -201,19 +280,19 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasGraphicTag(final String name) {
-        String key = "graphic:" + name;
-        return _tagMap.containsKey(key);
+        if (_parent != null) {
+            return _parent.hasGraphicTag(name);
+        }
+        return _graphicTag.has(name);
     }
 
     /**
-     * 画像データ位置を返します。
+     * 画像データ位置テーブルを返します。
      *
-     * @param name タグ名称
-     * @return 開始位置
+     * @return 画像データ位置テーブル
      */
-    public Position getGraphicTag(final String name) {
-        String key = "graphic:" + name;
-        return _tagMap.get(key);
+    public TagTable getGraphicTag() {
+        return _graphicTag;
     }
 
     /**
@@ -223,8 +302,7 @@ public class Reference {
      * @return 画像フォーマット
      */
     public String getGraphicFormat(final String name) {
-        String key = "graphic:" + name;
-        return _formatMap.get(key);
+        return _graphicFormatMap.get(name);
     }
 
     /**
@@ -238,12 +316,8 @@ public class Reference {
      */
     public void putSoundTag(final String name, final String format, final File file,
                             final long start, final long end) {
-        String key = "sound-start:" + name;
-        _tagMap.put(key, new Position(file, start));
-        key = "sound-end:" + name;
-        _tagMap.put(key, new Position(file, end));
-        key = "sound:" + name;
-        _formatMap.put(key, format);
+        _soundTag.put(name, getFileId(file), start, end);
+        _soundFormatMap.put(name, format);
     }
 
     /**
@@ -253,23 +327,19 @@ public class Reference {
      * @return 登録されている場合はtrue、そうでない場合はfalse
      */
     public boolean hasSoundTag(final String name) {
-        String key = "sound-start:" + name;
-        return _tagMap.containsKey(key);
+        if (_parent != null) {
+            return _parent.hasSoundTag(name);
+        }
+        return _soundTag.has(name);
     }
 
     /**
-     * 音声データ位置を返します。
+     * 音声データ位置テーブルを返します。
      *
-     * @param name タグ名称
-     * @return 位置 {開始位置,終了位置}
+     * @return 音声データ位置テーブル
      */
-    public Position[] getSoundTag(final String name) {
-        Position[] pos = new Position[2];
-        String key = "sound-start:" + name;
-        pos[0] = _tagMap.get(key);
-        key = "sound-end:" + name;
-        pos[1] = _tagMap.get(key);
-        return pos;
+    public TagTable getSoundTag() {
+        return _soundTag;
     }
 
     /**
@@ -279,8 +349,7 @@ public class Reference {
      * @return 音声フォーマット
      */
     public String getSoundFormat(final String name) {
-        String key = "sound:" + name;
-        return _formatMap.get(key);
+        return _soundFormatMap.get(name);
     }
 
     /**
@@ -311,8 +380,7 @@ public class Reference {
      * @param name 参照タグ名称
      */
     public void putHeadRef(final File file, final long pos, final String name) {
-        String tag = "head:" + name;
-        _refMap.put(new Position(file, pos), tag);
+        _headRef.add(getFileId(file), pos, _headTag.getId(name));
     }
 
     /**
@@ -323,8 +391,7 @@ public class Reference {
      * @param name 参照タグ名称
      */
     public void putBodyRef(final File file, final long pos, final String name) {
-        String tag = "body:" + name;
-        _refMap.put(new Position(file, pos), tag);
+        _bodyRef.add(getFileId(file), pos, _bodyTag.getId(name));
     }
 
     /**
@@ -332,11 +399,10 @@ public class Reference {
      *
      * @param file ファイル
      * @param pos 参照位置
-     * @param name 参照タグ名称
+     * @param block 参照先のインデックスファイル内のブロック番号 (1から)
      */
-    public void putIndexRef(final File file, final long pos, final String name) {
-        String tag = "index:" + name;
-        _refMap.put(new Position(file, pos), tag);
+    public void putIndexRef(final File file, final long pos, final long block) {
+        _indexRef.add(getFileId(file), pos, (int)block);
     }
 
     /**
@@ -347,9 +413,8 @@ public class Reference {
      * @param name 参照タグ名称
      */
     public void putGraphicRef(final File file, final long pos, final String name) {
-        String tag = "graphic:" + name;
-        _refMap.put(new Position(file, pos), tag);
-     }
+        _graphicRef.add(getFileId(file), pos, _graphicTag.getId(name));
+    }
 
     /**
      * 音声参照位置を登録します。
@@ -359,71 +424,107 @@ public class Reference {
      * @param name 参照タグ名称
      */
     public void putSoundRef(final File file, final long pos, final String name) {
-        String tag = "sound:" + name;
-        _refMap.put(new Position(file, pos), tag);
+        _soundRef.add(getFileId(file), pos, _soundTag.getId(name));
+    }
+
+    /**
+     * 指定された参照情報に登録された参照位置をすべて追加します。
+     * タグ番号はタグ名称を介してこの参照情報の番号に振り替えます。
+     *
+     * @param ref 参照情報
+     */
+    public void putRef(final Reference ref) {
+        putRef(ref, 0L);
+    }
+
+    /**
+     * 指定された参照情報に登録された参照位置を、指定された位置だけずらしてすべて追加します。
+     * タグ番号はタグ名称を介してこの参照情報の番号に振り替えます。
+     *
+     * @param ref 参照情報
+     * @param offset 参照位置に加える値
+     */
+    public void putRef(final Reference ref, final long offset) {
+        RefTable table = ref.getHeadRef();
+        int n = table.size();
+        for (int i = 0; i < n; i++) {
+            putHeadRef(ref.getFile(table.getFile(i)), table.getPosition(i) + offset,
+                       ref.getHeadTag().getName(table.getTag(i)));
+        }
+        table = ref.getBodyRef();
+        n = table.size();
+        for (int i = 0; i < n; i++) {
+            putBodyRef(ref.getFile(table.getFile(i)), table.getPosition(i) + offset,
+                       ref.getBodyTag().getName(table.getTag(i)));
+        }
+        table = ref.getIndexRef();
+        n = table.size();
+        for (int i = 0; i < n; i++) {
+            putIndexRef(ref.getFile(table.getFile(i)), table.getPosition(i) + offset,
+                        table.getTag(i));
+        }
+        table = ref.getGraphicRef();
+        n = table.size();
+        for (int i = 0; i < n; i++) {
+            putGraphicRef(ref.getFile(table.getFile(i)), table.getPosition(i) + offset,
+                          ref.getGraphicTag().getName(table.getTag(i)));
+        }
+        table = ref.getSoundRef();
+        n = table.size();
+        for (int i = 0; i < n; i++) {
+            putSoundRef(ref.getFile(table.getFile(i)), table.getPosition(i) + offset,
+                        ref.getSoundTag().getName(table.getTag(i)));
+        }
     }
 
     /**
      * 見出し参照位置を返します。
+     * タグ番号は見出し位置テーブルの番号です。
      *
      * @return 見出し参照位置
      */
-    public Map<Position, String> getHeadRef() {
-        return _getRef("head:");
+    public RefTable getHeadRef() {
+        return _headRef;
     }
 
     /**
      * 本文参照位置を返します。
+     * タグ番号は本文位置テーブルの番号です。
      *
      * @return 本文参照位置
      */
-    public Map<Position, String> getBodyRef() {
-        return _getRef("body:");
+    public RefTable getBodyRef() {
+        return _bodyRef;
     }
 
     /**
      * インデックス参照位置を返します。
+     * タグ番号は参照先のインデックスファイル内のブロック番号 (1から) です。
      *
      * @return インデックス参照位置
      */
-    public Map<Position, String> getIndexRef() {
-        return _getRef("index:");
+    public RefTable getIndexRef() {
+        return _indexRef;
     }
 
     /**
      * 画像参照位置を返します。
+     * タグ番号は画像データ位置テーブルの番号です。
      *
      * @return 画像参照位置
      */
-    public Map<Position, String> getGraphicRef() {
-        return _getRef("graphic:");
+    public RefTable getGraphicRef() {
+        return _graphicRef;
     }
 
     /**
      * 音声参照位置を返します。
+     * タグ番号は音声データ位置テーブルの番号です。
      *
      * @return 音声参照位置
      */
-    public Map<Position, String> getSoundRef() {
-        return _getRef("sound:");
-    }
-
-    /**
-     * 指定された接頭辞のタグ名称を持つ参照位置マップを返します。
-     *
-     * @param prefix タグ名称の接頭辞
-     * @return 参照位置マップ
-     */
-    private Map<Position, String> _getRef(final String prefix) {
-        Map<Position, String> map = new HashMap<>();
-        for (Map.Entry<Position, String> entry : _refMap.entrySet()) {
-            String tag = entry.getValue();
-            if (tag.startsWith(prefix)) {
-                tag = tag.substring(prefix.length());
-                map.put(entry.getKey(), tag);
-            }
-        }
-        return map;
+    public RefTable getSoundRef() {
+        return _soundRef;
     }
 }
 
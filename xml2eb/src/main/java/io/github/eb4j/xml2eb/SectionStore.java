@@ -0,0 +1,412 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 一時データ格納クラス。
+ * <p>
+ * 書籍構成要素の一時データを、上限サイズまではメモリ上のバッファに保持し、
+ * 上限を超えた場合は一時ファイルに書き出します。
+ * 上限サイズが0の場合は常に一時ファイルを使用します。
+ * 上限サイズは複数の副本の変換で共有されます。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+class SectionStore {
+
+    /** バッファの単位 (ブロックサイズの倍数) */
+    private static final int CHUNK_SIZE = 2048 * 32;
+
+    /** ログ */
+    private Logger _logger = null;
+    /** メモリ上に保持する最大バイト数 */
+    private long _limit = 0L;
+    /** メモリ上で使用中のバイト数 */
+    private AtomicLong _used = null;
+    /** メモリ上の一時データマップ */
+    private Map<File, Section> _sectionMap = null;
+
+
+    /**
+     * メモリ上の一時データ。
+     */
+    static final class Section {
+
+        /** バッファリスト */
+        private List<byte[]> _chunkList = new ArrayList<>();
+        /** データサイズ */
+        private long _size = 0L;
+
+
+        /**
+         * コンストラクタ。
+         *
+         */
+        private Section() {
+            super();
+        }
+
+
+        /**
+         * データサイズを返します。
+         *
+         * @return データサイズ
+         */
+        long getSize() {
+            return _size;
+        }
+
+        /**
+         * 指定された位置の値を書き換えます。
+         * 値は指定されたバイト数のビッグエンディアンで書き込まれます。
+         *
+         * @param pos 位置
+         * @param value 値
+         * @param len バイト数 (1から8)
+         * @exception IOException 位置がデータの範囲外の場合
+         */
+        void put(final long pos, final long value, final int len) throws IOException {
+            if (pos < 0 || pos + len > _size) {
+                throw new IOException("invalid patch position: " + pos);
+            }
+            long val = value;
+            for (int k = len - 1; k >= 0; k--) {
+                long p = pos + k;
+                _chunkList.get((int)(p / CHUNK_SIZE))[(int)(p % CHUNK_SIZE)] = (byte)val;
+                val >>>= 8;
+            }
+        }
+    }
+
+
+    /**
+     * コンストラクタ。
+     *
+     * @param limit メモリ上に保持する最大バイト数
+     */
+    SectionStore(final long limit) {
+        super();
+        _logger = LoggerFactory.getLogger(getClass());
+        _limit = Math.max(0L, limit);
+        _used = new AtomicLong(0L);
+        _sectionMap = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * 指定された一時データへの出力ストリームを返します。
+     *
+     * @param file 一時ファイル
+     * @return 出力ストリーム
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    OutputStream openOutputStream(final File file) throws IOException {
+        if (_limit <= 0) {
+            return new FileOutputStream(file);
+        }
+        Section section = new Section();
+        _sectionMap.put(file, section);
+        return new SectionOutputStream(file, section);
+    }
+
+    /**
+     * 指定された一時データが存在するかどうかを返します。
+     *
+     * @param file 一時ファイル
+     * @return 存在する場合はtrue、そうでない場合はfalse
+     */
+    boolean exists(final File file) {
+        return _sectionMap.containsKey(file) || file.exists();
+    }
+
+    /**
+     * 指定された一時データのサイズを返します。
+     *
+     * @param file 一時ファイル
+     * @return サイズ
+     */
+    long length(final File file) {
+        Section section = _sectionMap.get(file);
+        if (section != null) {
+            return section.getSize();
+        }
+        return file.length();
+    }
+
+    /**
+     * 参照修正リストを一時データに反映します。
+     *
+     * @param patch 参照修正リスト
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    void apply(final PatchList patch) throws IOException {
+        Section section = _sectionMap.get(patch.getFile());
+        if (section != null) {
+            patch.apply(section);
+        } else {
+            patch.apply();
+        }
+    }
+
+    /**
+     * 指定された一時データの内容を指定されたチャネルに出力します。
+     * 一時ファイルの場合はファイルチャネル間で直接転送します。
+     *
+     * @param file 一時ファイル
+     * @param out 出力チャネル
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    void transferTo(final File file, final FileChannel out) throws IOException {
+        Section section = _sectionMap.get(file);
+        if (section != null) {
+            long rest = section.getSize();
+            for (byte[] chunk : section._chunkList) {
+                int n = (int)Math.min(rest, chunk.length);
+                ByteBuffer buf = ByteBuffer.wrap(chunk, 0, n);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                rest -= n;
+            }
+            return;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long pos = 0L;
+            while (pos < size) {
+                pos += channel.transferTo(pos, size - pos, out);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 指定された一時データの内容を指定されたストリームに出力します。
+     *
+     * @param file 一時ファイル
+     * @param out 出力ストリーム
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    void copyTo(final File file, final OutputStream out) throws IOException {
+        Section section = _sectionMap.get(file);
+        if (section != null) {
+            _write(section, out);
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            IOUtils.copy(in, out);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 指定された一時データを削除します。
+     *
+     * @param file 一時ファイル
+     * @return 削除に成功した場合はtrue、そうでない場合はfalse
+     */
+    boolean delete(final File file) {
+        Section section = _sectionMap.remove(file);
+        if (section != null) {
+            _release(section);
+            return true;
+        }
+        return file.delete();
+    }
+
+    /**
+     * メモリ上の一時データの内容を指定されたストリームに出力します。
+     *
+     * @param section メモリ上の一時データ
+     * @param out 出力ストリーム
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _write(final Section section, final OutputStream out) throws IOException {
+        long rest = section.getSize();
+        for (byte[] chunk : section._chunkList) {
+            int n = (int)Math.min(rest, chunk.length);
+            out.write(chunk, 0, n);
+            rest -= n;
+        }
+    }
+
+    /**
+     * 指定されたバイト数のメモリを確保します。
+     *
+     * @param size バイト数
+     * @return 確保できた場合はtrue、上限を超える場合はfalse
+     */
+    private boolean _reserve(final long size) {
+        while (true) {
+            long used = _used.get();
+            if (used + size > _limit) {
+                return false;
+            }
+            if (_used.compareAndSet(used, used + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 一時データが使用しているメモリを解放します。
+     *
+     * @param section 一時データ
+     */
+    private void _release(final Section section) {
+        _used.addAndGet(-(long)section._chunkList.size() * CHUNK_SIZE);
+        section._chunkList.clear();
+    }
+
+
+    /**
+     * 一時データへの出力ストリーム。
+     * メモリを確保できなくなった時点で、それまでの内容を一時ファイルに書き出し、
+     * 以降は一時ファイルへ出力します。
+     */
+    private final class SectionOutputStream extends OutputStream {
+
+        /** 一時ファイル */
+        private File _file = null;
+        /** メモリ上の一時データ */
+        private Section _section = null;
+        /** 現在のバッファ */
+        private byte[] _chunk = null;
+        /** 現在のバッファ内の位置 */
+        private int _pos = 0;
+        /** 一時ファイルへの出力ストリーム */
+        private OutputStream _out = null;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param file 一時ファイル
+         * @param section メモリ上の一時データ
+         */
+        private SectionOutputStream(final File file, final Section section) {
+            super();
+            _file = file;
+            _section = section;
+        }
+
+
+        /**
+         * 指定されたバイトを書き込みます。
+         *
+         * @param b 書き込むバイト値
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            if (_out == null && _ensure()) {
+                _chunk[_pos++] = (byte)b;
+                _section._size++;
+            } else {
+                _out.write(b);
+            }
+        }
+
+        /**
+         * 指定されたバイト配列の指定されたオフセット位置から指定されたバイト数を書き込みます。
+         *
+         * @param b 書き込むバイト配列
+         * @param off 書き込み開始位置
+         * @param len 書き込むバイト数
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int offset = off;
+            int rest = len;
+            while (rest > 0) {
+                if (_out != null || !_ensure()) {
+                    _out.write(b, offset, rest);
+                    return;
+                }
+                int n = Math.min(rest, _chunk.length - _pos);
+                System.arraycopy(b, offset, _chunk, _pos, n);
+                _pos += n;
+                _section._size += n;
+                offset += n;
+                rest -= n;
+            }
+        }
+
+        /**
+         * 出力ストリームをフラッシュします。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        @Override
+        public void flush() throws IOException {
+            if (_out != null) {
+                _out.flush();
+            }
+        }
+
+        /**
+         * 出力ストリームを閉じます。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        @Override
+        public void close() throws IOException {
+            if (_out != null) {
+                _out.close();
+            }
+        }
+
+        /**
+         * 現在のバッファに空きを確保します。
+         * メモリを確保できない場合は一時ファイルへの出力に切り替えます。
+         *
+         * @return バッファに空きがある場合はtrue、一時ファイルに切り替えた場合はfalse
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private boolean _ensure() throws IOException {
+            if (_chunk != null && _pos < _chunk.length) {
+                return true;
+            }
+            if (_reserve(CHUNK_SIZE)) {
+                _chunk = new byte[CHUNK_SIZE];
+                _pos = 0;
+                _section._chunkList.add(_chunk);
+                return true;
+            }
+            _logger.info("memory limit exceeded, write file: " + _file.getPath());
+            _out = new BufferedOutputStream(new FileOutputStream(_file));
+            _write(_section, _out);
+            _sectionMap.remove(_file);
+            _release(_section);
+            _chunk = null;
+            return false;
+        }
+    }
+}
+
+// end of SectionStore.java
@@ -0,0 +1,153 @@
+package io.github.eb4j.xml2eb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * タグ位置テーブルクラス。
+ * <p>
+ * タグ名称に登録順のタグ番号を割り当て、タグ番号ごとに
+ * 参照先のファイル番号と位置をプリミティブ配列で保持します。
+ * 参照が先に現れたタグにも番号を割り当てるため、
+ * 位置が未定義のタグ番号が存在することがあります。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+public class TagTable {
+
+    /** 初期容量 */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** タグ番号マップ */
+    private Map<String, Integer> _idMap = null;
+    /** タグ名称リスト */
+    private List<String> _nameList = null;
+    /** ファイル番号 (未定義の場合は-1) */
+    private int[] _file = null;
+    /** 開始位置 */
+    private long[] _pos = null;
+    /** 終了位置 */
+    private long[] _end = null;
+
+
+    /**
+     * コンストラクタ。
+     *
+     */
+    public TagTable() {
+        super();
+        _idMap = new HashMap<>();
+        _nameList = new ArrayList<>();
+        _file = new int[INITIAL_CAPACITY];
+        Arrays.fill(_file, -1);
+        _pos = new long[INITIAL_CAPACITY];
+        _end = new long[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * 指定されたタグ名称のタグ番号を返します。
+     * 番号が割り当てられていない場合は新たに割り当てます。
+     *
+     * @param name タグ名称
+     * @return タグ番号
+     */
+    public int getId(final String name) {
+        Integer id = _idMap.get(name);
+        if (id != null) {
+            return id.intValue();
+        }
+        int n = _nameList.size();
+        if (n >= _file.length) {
+            int size = _file.length * 2;
+            _file = Arrays.copyOf(_file, size);
+            Arrays.fill(_file, n, size, -1);
+            _pos = Arrays.copyOf(_pos, size);
+            _end = Arrays.copyOf(_end, size);
+        }
+        _idMap.put(name, Integer.valueOf(n));
+        _nameList.add(name);
+        return n;
+    }
+
+    /**
+     * タグの位置を登録します。
+     *
+     * @param name タグ名称
+     * @param file ファイル番号
+     * @param pos 開始位置
+     * @param end 終了位置
+     */
+    public void put(final String name, final int file, final long pos, final long end) {
+        int id = getId(name);
+        _file[id] = file;
+        _pos[id] = pos;
+        _end[id] = end;
+    }
+
+    /**
+     * 指定されたタグ名称の位置が登録されているかどうかを返します。
+     *
+     * @param name タグ名称
+     * @return 登録されている場合はtrue、そうでない場合はfalse
+     */
+    public boolean has(final String name) {
+        Integer id = _idMap.get(name);
+        return id != null && isDefined(id.intValue());
+    }
+
+    /**
+     * 指定されたタグ番号の位置が登録されているかどうかを返します。
+     *
+     * @param id タグ番号
+     * @return 登録されている場合はtrue、そうでない場合はfalse
+     */
+    public boolean isDefined(final int id) {
+        return id >= 0 && id < _nameList.size() && _file[id] >= 0;
+    }
+
+    /**
+     * 指定されたタグ番号のタグ名称を返します。
+     *
+     * @param id タグ番号
+     * @return タグ名称
+     */
+    public String getName(final int id) {
+        return _nameList.get(id);
+    }
+
+    /**
+     * 指定されたタグ番号のファイル番号を返します。
+     *
+     * @param id タグ番号
+     * @return ファイル番号 (未定義の場合は-1)
+     */
+    public int getFile(final int id) {
+        return _file[id];
+    }
+
+    /**
+     * 指定されたタグ番号の開始位置を返します。
+     *
+     * @param id タグ番号
+     * @return 開始位置
+     */
+    public long getPosition(final int id) {
+        return _pos[id];
+    }
+
+    /**
+     * 指定されたタグ番号の終了位置を返します。
+     *
+     * @param id タグ番号
+     * @return 終了位置
+     */
+    public long getEndPosition(final int id) {
+        return _end[id];
+    }
+}
+
+// end of TagTable.java
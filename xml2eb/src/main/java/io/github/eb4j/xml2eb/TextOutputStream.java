@@ -3,18 +3,17 @@ package io.github.eb4j.xml2eb;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Stack;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.sound.sampled.AudioFormat;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.github.eb4j.hook.Hook;
-import io.github.eb4j.util.ByteUtil;
-import io.github.eb4j.xml2eb.util.UnicodeUtil;
+import io.github.eb4j.xml2eb.util.JisUtil;
 
 /**
  * テキスト出力ストリーム。
@@ -28,23 +27,36 @@ public class TextOutputStream extends BlockOutputStream {
     /** 文字修飾種別 (斜体) */
     public static final int ITALIC = Hook.ITALIC;
 
-    private static final Integer NARROW = 0;
-    private static final Integer SUBSCRIPT = 1;
-    private static final Integer SUPERSCRIPT = 2;
-    private static final Integer NOBR = 3;
-    private static final Integer EMPHASIS = 4;
-    private static final Integer DECORATION = 5;
-    private static final Integer KEYWORD = 6;
-    private static final Integer REFERENCE = 7;
-    private static final Integer ICGRAPHIC = 8;
-    private static final Integer CGRAPHIC = 9;
-    private static final Integer SOUND = 10;
+    private static final int NARROW = 0;
+    private static final int SUBSCRIPT = 1;
+    private static final int SUPERSCRIPT = 2;
+    private static final int NOBR = 3;
+    private static final int EMPHASIS = 4;
+    private static final int DECORATION = 5;
+    private static final int KEYWORD = 6;
+    private static final int REFERENCE = 7;
+    private static final int ICGRAPHIC = 8;
+    private static final int CGRAPHIC = 9;
+    private static final int SOUND = 10;
+    /** 制御記述子の種類の数 */
+    private static final int MODIFIER_COUNT = 11;
+
+    /** 参照位置の予約に使用するゼロ埋めデータ */
+    private static final byte[] ZERO = new byte[14];
+    /** キャッシュするテキストの最大文字数 */
+    private static final int MAX_CACHE_LENGTH = 32;
+    /** キャッシュの1エントリあたりの管理領域のバイト数 (概算) */
+    private static final int CACHE_ENTRY_SIZE = 96;
 
     /** ログ */
     private Logger _logger = null;
 
-    /** 制御記述子スタック */
-    private Stack<Integer> _stack = new Stack<>();
+    /** 制御記述子スタック (同じ制御記述子は重複しないため種類の数で足りる) */
+    private int[] _stack = new int[MODIFIER_COUNT];
+    /** 制御記述子スタックの深さ */
+    private int _depth = 0;
+    /** 開始中の制御記述子のビットマスク */
+    private int _mask = 0;
 
     /** 参照情報 */
     private Reference _ref = null;
@@ -52,6 +64,122 @@ public class TextOutputStream extends BlockOutputStream {
     private File _file = null;
     /** 現在のインデントレベル */
     private int _indent = -1;
+    /** 符号化結果 */
+    private EncodedText _encoded = new EncodedText(new byte[256]);
+    /** 符号化済みテキストのキャッシュ (無効の場合はnull) */
+    private TextCache _cache = null;
+
+
+    /**
+     * 符号化済みテキスト。
+     * 最初の範囲の半角指定を除き、範囲の間の半角指定の切り替えを含みます。
+     */
+    private static final class EncodedText {
+
+        /** 符号化したバイト列 */
+        private byte[] _data = null;
+        /** バイト数 */
+        private int _length = 0;
+        /** 最初の範囲が半角かどうか */
+        private boolean _firstNarrow = false;
+        /** 最後の範囲が半角かどうか */
+        private boolean _lastNarrow = false;
+        /** 無効な文字の位置 (存在しない場合は-1) */
+        private int _error = -1;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param data バイト列
+         */
+        private EncodedText(final byte[] data) {
+            super();
+            _data = data;
+        }
+
+
+        /**
+         * 符号化したバイト列を複製した符号化済みテキストを返します。
+         *
+         * @return 符号化済みテキスト
+         */
+        private EncodedText copy() {
+            byte[] data = new byte[_length];
+            System.arraycopy(_data, 0, data, 0, _length);
+            EncodedText text = new EncodedText(data);
+            text._length = _length;
+            text._firstNarrow = _firstNarrow;
+            text._lastNarrow = _lastNarrow;
+            return text;
+        }
+    }
+
+    /**
+     * 符号化済みテキストのキャッシュ。
+     * 最近使用した順に上限のバイト数まで保持します。
+     * 複数のストリームで共有できますが、スレッドセーフではありません。
+     */
+    static final class TextCache {
+
+        /** 符号化済みテキスト */
+        private Map<String, EncodedText> _map = null;
+        /** 最大バイト数 */
+        private long _limit = 0L;
+        /** 使用バイト数 */
+        private long _size = 0L;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param limit 最大バイト数
+         */
+        TextCache(final long limit) {
+            super();
+            _map = new LinkedHashMap<>(256, 0.75f, true);
+            _limit = limit;
+        }
+
+
+        /**
+         * 指定されたテキストの符号化済みテキストを返します。
+         *
+         * @param text テキスト
+         * @return 符号化済みテキスト (存在しない場合はnull)
+         */
+        private EncodedText get(final String text) {
+            return _map.get(text);
+        }
+
+        /**
+         * 符号化済みテキストを追加し、上限を超えた分を古い順に取り除きます。
+         *
+         * @param text テキスト
+         * @param enc 符号化済みテキスト
+         */
+        private void put(final String text, final EncodedText enc) {
+            _map.put(text, enc);
+            _size += _getSize(text, enc);
+            Iterator<Map.Entry<String, EncodedText>> it = _map.entrySet().iterator();
+            while (_size > _limit && it.hasNext()) {
+                Map.Entry<String, EncodedText> entry = it.next();
+                _size -= _getSize(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+
+        /**
+         * エントリが使用するバイト数を返します。
+         *
+         * @param text テキスト
+         * @param enc 符号化済みテキスト
+         * @return バイト数
+         */
+        private static long _getSize(final String text, final EncodedText enc) {
+            return CACHE_ENTRY_SIZE + text.length() * 2L + enc._length;
+        }
+    }
 
 
     /**
@@ -76,14 +204,70 @@ public class TextOutputStream extends BlockOutputStream {
         _ref = ref;
     }
 
+    /**
+     * 符号化済みテキストのキャッシュの最大バイト数を設定します。
+     * {@value #MAX_CACHE_LENGTH}文字以下のテキストは、符号化したバイト列を
+     * 最近使用した順に上限まで保持し、同じテキストをまとめて書き込みます。
+     * 0を指定した場合はキャッシュを使用しません。
+     *
+     * @param size 最大バイト数
+     */
+    public void setTextCacheSize(final long size) {
+        if (size <= 0) {
+            _cache = null;
+        } else {
+            _cache = new TextCache(size);
+        }
+    }
+
+    /**
+     * 符号化済みテキストのキャッシュを設定します。
+     * 同じスレッドで使用する複数のストリームでキャッシュを共有する場合に使用します。
+     *
+     * @param cache キャッシュ (使用しない場合はnull)
+     */
+    void setTextCache(final TextCache cache) {
+        _cache = cache;
+    }
+
     /**
      * 現在の制御記述子が指定されたものかどうかを返します。
      *
      * @param mod 制御識別子
      * @return 現在の制御識別子であればtrue、そうでなければfalse
      */
-    private boolean _isModifier(final Integer mod) {
-        return !_stack.empty() && _stack.peek().equals(mod);
+    private boolean _isModifier(final int mod) {
+        return _depth > 0 && _stack[_depth - 1] == mod;
+    }
+
+    /**
+     * 指定された制御記述子が開始中でないことを確認します。
+     *
+     * @param mod 制御識別子
+     * @exception IOException 既に開始中の場合
+     */
+    private void _checkModifier(final int mod) throws IOException {
+        if ((_mask & (1 << mod)) != 0) {
+            throw new IOException("duplicate modifier");
+        }
+    }
+
+    /**
+     * 制御記述子をスタックに積みます。
+     *
+     * @param mod 制御識別子
+     */
+    private void _push(final int mod) {
+        _stack[_depth++] = mod;
+        _mask |= 1 << mod;
+    }
+
+    /**
+     * 現在の制御記述子をスタックから取り除きます。
+     *
+     */
+    private void _pop() {
+        _mask &= ~(1 << _stack[--_depth]);
     }
 
     /**
@@ -94,17 +278,23 @@ public class TextOutputStream extends BlockOutputStream {
     @Override
     public void close() throws IOException {
         if (_indent > 0) {
-            byte[] val = new byte[4];
-            val[0] = (byte)0x1f;
-            val[1] = (byte)0x09;
-            val[2] = (byte)((_indent >>> 8) & 0xff);
-            val[3] = (byte)(_indent & 0xff);
-            super.write(val, 0, val.length);
-            _indent = -1;
+            _writeIndent();
         }
         super.close();
     }
 
+    /**
+     * 保留中のインデント指定を書き込みます。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _writeIndent() throws IOException {
+        int indent = _indent;
+        _indent = -1;
+        super.writeShort(0x1f09);
+        super.writeShort(indent);
+    }
+
     /**
      * 指定されたバイト配列の指定されたオフセット位置から指定されたバイト数を書き込みます。
      *
@@ -116,17 +306,53 @@ public class TextOutputStream extends BlockOutputStream {
     @Override
     public void write(final byte[] b, final int off, final int len) throws IOException {
         if (_indent > 0) {
-            byte[] val = new byte[4];
-            val[0] = (byte)0x1f;
-            val[1] = (byte)0x09;
-            val[2] = (byte)((_indent >>> 8) & 0xff);
-            val[3] = (byte)(_indent & 0xff);
-            super.write(val, 0, val.length);
-            _indent = -1;
+            _writeIndent();
         }
         super.write(b, off, len);
     }
 
+    /**
+     * 指定されたバイトを書き込みます。
+     *
+     * @param b 書き込むバイト値
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        if (_indent > 0) {
+            _writeIndent();
+        }
+        super.write(b);
+    }
+
+    /**
+     * 指定された値を2バイト (ビッグエンディアン) で書き込みます。
+     *
+     * @param v 書き込む値
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    @Override
+    public void writeShort(final int v) throws IOException {
+        if (_indent > 0) {
+            _writeIndent();
+        }
+        super.writeShort(v);
+    }
+
+    /**
+     * 指定された値を4バイト (ビッグエンディアン) で書き込みます。
+     *
+     * @param v 書き込む値
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    @Override
+    public void writeInt(final int v) throws IOException {
+        if (_indent > 0) {
+            _writeIndent();
+        }
+        super.writeInt(v);
+    }
+
     /**
      * 書き込みバイト数を返します。
      *
@@ -156,6 +382,13 @@ public class TextOutputStream extends BlockOutputStream {
 
     /**
      * テキストを追加します。
+     * <p>
+     * テキストを半角文字と全角文字が連続する範囲に分け、
+     * 範囲ごとに半角指定を1回だけ切り替えてまとめて書き込みます。
+     * 半角文字はJIS X 0208に変換して書き込み、改行は無視します。
+     * ユニコードの矯正とタブの空白への置き換えは変換表の参照と同時に行うため、
+     * テキストは一度だけ走査します。
+     * キャッシュが有効な場合、短いテキストは符号化済みのバイト列を再利用します。
      *
      * @param text テキスト
      * @exception IOException 入出力エラーが発生した場合
@@ -164,67 +397,205 @@ public class TextOutputStream extends BlockOutputStream {
         if (StringUtils.isEmpty(text)) {
             return;
         }
-        String str = text.replace('\t', ' ');
-        str = UnicodeUtil.sanitizeUnicode(str);
-        int len = str.length();
-        for (int i = 0; i < len; i++) {
-            int codePoint = str.codePointAt(i);
-            if (Character.isSupplementaryCodePoint(codePoint)) {
-                // 補助文字
-                throw new InvalidCharacterException(codePoint);
+        int len = text.length();
+        if (_cache != null && len <= MAX_CACHE_LENGTH) {
+            EncodedText enc = _cache.get(text);
+            if (enc == null) {
+                enc = _encode(text);
+                if (enc._error >= 0) {
+                    _appendEncoded(enc);
+                    throw new InvalidCharacterException(text.codePointAt(enc._error));
+                }
+                enc = enc.copy();
+                _cache.put(text, enc);
+            }
+            _appendEncoded(enc);
+            return;
+        }
+        EncodedText enc = _encode(text);
+        _appendEncoded(enc);
+        if (enc._error >= 0) {
+            throw new InvalidCharacterException(text.codePointAt(enc._error));
+        }
+    }
+
+    /**
+     * テキストを半角文字と全角文字の範囲ごとに符号化します。
+     * 無効な文字が見つかった場合は、その手前までを符号化します。
+     *
+     * @param text テキスト
+     * @return 符号化結果 (次の呼び出しで上書きされる)
+     */
+    private EncodedText _encode(final String text) {
+        int len = text.length();
+        EncodedText enc = _encoded;
+        if (enc._data.length < len * 4) {
+            enc._data = new byte[len * 4];
+        }
+        byte[] buf = enc._data;
+        int n = 0;
+        int prev = 0;
+        enc._error = -1;
+        int i = 0;
+        while (i < len) {
+            int type = JisUtil.getType(_toText(text.charAt(i)));
+            if (type == JisUtil.TYPE_DROP) {
+                i++;
+                continue;
             }
-            String s = String.valueOf(Character.toChars(codePoint));
-            // Unicode -> EUC-JP
-            byte[] b = s.getBytes("EUC-JP");
-            if (ArrayUtils.isEmpty(b)) {
-                throw new InvalidCharacterException(codePoint);
+            if (type != JisUtil.TYPE_NARROW && type != JisUtil.TYPE_WIDE) {
+                enc._error = i;
+                break;
+            }
+            if (prev == 0) {
+                enc._firstNarrow = type == JisUtil.TYPE_NARROW;
             } else {
-                int c1 = b[0] & 0xff;
-                int c2;
-                if (c1 == 0x3f && codePoint != '?') {
-                    // EUC-JPでない不明な文字
-                    throw new InvalidCharacterException(codePoint);
-                } else if (c1 == 0x0a || c1 == 0x0d) {
-                    // 改行は無視
+                // 範囲の間の半角指定の切り替え
+                buf[n++] = (byte)0x1f;
+                buf[n++] = (byte)(type == JisUtil.TYPE_NARROW ? 0x04 : 0x05);
+            }
+            // 同じ文字種別が続く範囲を符号化
+            for (; i < len; i++) {
+                char ch = _toText(text.charAt(i));
+                int t = JisUtil.getType(ch);
+                if (t == JisUtil.TYPE_DROP) {
                     continue;
-                } else if (c1 >= 0x20 && c1 <= 0x7e) {
-                    // G0(ASCII)はJISX0208に変換し、半角指定と共に書き込む
-                    int c = ByteUtil.asciiToJISX0208(c1);
-                    if (!_isModifier(NARROW)) {
-                        beginNarrow();
-                    }
-                    write((c >>> 8) & 0xff);
-                    write(c & 0xff);
-                } else if (c1 >= 0xa1 && c1 <= 0xfe) {
-                    // G1(JISX0208)はJISX0208に変換して書き込む
-                    c2 = b[1] & 0xff;
-                    if (c2 >= 0xa1 && c2 <= 0xfe) {
-                        c1 = c1 & 0x7f;
-                        c2 = c2 & 0x7f;
-                        if (_isModifier(NARROW)) {
-                            endNarrow();
-                        }
-                        write(c1);
-                        write(c2);
-                    } else {
-                        throw new InvalidCharacterException(codePoint);
-                    }
-                } else if (c1 == 0x8e) {
-                    // G2(JISX0201)はJISX0208に変換し、半角指定と共に書き込む
-                    c2 = b[1] & 0xff;
-                    if (c2 >= 0xa1 && c2 <= 0xdf) {
-                        int c = ByteUtil.jisx0201ToJISX0208(c2);
-                        if (!_isModifier(NARROW)) {
-                            beginNarrow();
-                        }
-                        write((c >>> 8) & 0xff);
-                        write(c & 0xff);
-                    } else {
-                        throw new InvalidCharacterException(codePoint);
-                    }
-                } else {
-                    throw new InvalidCharacterException(codePoint);
                 }
+                if (t != type) {
+                    break;
+                }
+                int c = JisUtil.getCode(ch);
+                buf[n++] = (byte)(c >>> 8);
+                buf[n++] = (byte)c;
+            }
+            prev = type;
+        }
+        enc._length = n;
+        enc._lastNarrow = prev == JisUtil.TYPE_NARROW;
+        return enc;
+    }
+
+    /**
+     * 符号化済みテキストを書き込みます。
+     * 最初の範囲の半角指定を切り替えてからバイト列をまとめて書き込み、
+     * 最後の範囲の半角指定を制御記述子スタックに反映します。
+     *
+     * @param enc 符号化済みテキスト
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _appendEncoded(final EncodedText enc) throws IOException {
+        if (enc._length == 0) {
+            return;
+        }
+        if (enc._firstNarrow) {
+            if (!_isModifier(NARROW)) {
+                beginNarrow();
+            }
+        } else if (_isModifier(NARROW)) {
+            endNarrow();
+        }
+        write(enc._data, 0, enc._length);
+        if (enc._lastNarrow != enc._firstNarrow) {
+            // 半角指定は常にスタックの先頭にある
+            if (enc._lastNarrow) {
+                _push(NARROW);
+            } else {
+                _pop();
+            }
+        }
+    }
+
+    /**
+     * テキスト中の文字を変換表で参照する文字に置き換えます。
+     * タブは空白として扱います。
+     *
+     * @param ch 文字
+     * @return 変換表で参照する文字
+     */
+    private static char _toText(final char ch) {
+        return ch == '\t' ? ' ' : ch;
+    }
+
+    /**
+     * 別のストリームで符号化したチャンクを書き込みます。
+     * <p>
+     * チャンクは、このストリームの現在の状態 (半角指定と保留中のインデント) と
+     * 同じ状態から符号化されている必要があります。
+     * 保留中のインデントはチャンクに含まれているため破棄し、バイト列をそのまま書き込んだ後、
+     * チャンクの終了時の状態を引き継ぎます。
+     *
+     * @param chunk チャンクを符号化したストリーム
+     * @param data チャンクのバイト列
+     * @param len チャンクのバイト数
+     * @return チャンクを書き込んだ位置
+     * @exception IOException チャンク内で半角指定以外の制御記述子が終了していない場合
+     */
+    long writeChunk(final TextOutputStream chunk, final byte[] data, final int len)
+        throws IOException {
+        boolean narrow = chunk._isModifier(NARROW);
+        if (chunk._depth > (narrow ? 1 : 0)) {
+            throw new IOException("modifier not terminated in chunk");
+        }
+        _indent = -1;
+        long pos = super.getSize();
+        super.write(data, 0, len);
+        _indent = chunk._indent;
+        if (narrow != _isModifier(NARROW)) {
+            if (narrow) {
+                _checkModifier(NARROW);
+                _push(NARROW);
+            } else {
+                _pop();
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * 開始中の制御記述子をすべて終了します。
+     * 変換に失敗した要素の制御記述子が後続のデータに及ばないようにするために使用します。
+     * 参照は参照先を登録せずに終了します。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    void endModifiers() throws IOException {
+        while (_depth > 0) {
+            switch (_stack[_depth - 1]) {
+                case NARROW:
+                    endNarrow();
+                    break;
+                case SUBSCRIPT:
+                    endSubscript();
+                    break;
+                case SUPERSCRIPT:
+                    endSuperscript();
+                    break;
+                case NOBR:
+                    endNoNewLine();
+                    break;
+                case EMPHASIS:
+                    endEmphasis();
+                    break;
+                case DECORATION:
+                    endDecoration();
+                    break;
+                case KEYWORD:
+                    endKeyword();
+                    break;
+                case REFERENCE:
+                    writeShort(0x1f62);
+                    write(ZERO, 0, 6);
+                    _pop();
+                    break;
+                case ICGRAPHIC:
+                    endInlineColorGraphic();
+                    break;
+                case CGRAPHIC:
+                    endColorGraphic();
+                    break;
+                default:
+                    endSound();
+                    break;
             }
         }
     }
@@ -243,8 +614,7 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(NARROW)) {
             beginNarrow();
         }
-        write((code >>> 8) & 0xff);
-        write(code & 0xff);
+        writeShort(code);
     }
 
     /**
@@ -261,8 +631,7 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        write((code >>> 8) & 0xff);
-        write(code & 0xff);
+        writeShort(code);
     }
 
     /**
@@ -274,8 +643,7 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        write(0x1f);
-        write(0x02);
+        writeShort(0x1f02);
     }
 
     /**
@@ -287,8 +655,7 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        write(0x1f);
-        write(0x03);
+        writeShort(0x1f03);
     }
 
     /**
@@ -297,12 +664,9 @@ public class TextOutputStream extends BlockOutputStream {
      * @exception IOException 入出力エラーが発生した場合
      */
     public void beginNarrow() throws IOException {
-        if (_stack.search(NARROW) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x04);
-        _stack.push(NARROW);
+        _checkModifier(NARROW);
+        writeShort(0x1f04);
+        _push(NARROW);
     }
 
     /**
@@ -314,9 +678,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(NARROW)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x05);
-        _stack.pop();
+        writeShort(0x1f05);
+        _pop();
     }
 
     /**
@@ -328,12 +691,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(SUBSCRIPT) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x06);
-        _stack.push(SUBSCRIPT);
+        _checkModifier(SUBSCRIPT);
+        writeShort(0x1f06);
+        _push(SUBSCRIPT);
     }
 
     /**
@@ -348,9 +708,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(SUBSCRIPT)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x07);
-        _stack.pop();
+        writeShort(0x1f07);
+        _pop();
     }
 
     /**
@@ -362,12 +721,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(SUPERSCRIPT) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x0e);
-        _stack.push(SUPERSCRIPT);
+        _checkModifier(SUPERSCRIPT);
+        writeShort(0x1f0e);
+        _push(SUPERSCRIPT);
     }
 
     /**
@@ -382,9 +738,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(SUPERSCRIPT)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x0f);
-        _stack.pop();
+        writeShort(0x1f0f);
+        _pop();
     }
 
     /**
@@ -396,11 +751,10 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (!_stack.empty()) {
+        if (_depth > 0) {
             throw new IOException("modifier not terminated before newline");
         }
-        write(0x1f);
-        write(0x0a);
+        writeShort(0x1f0a);
     }
 
     /**
@@ -412,12 +766,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(NOBR) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x10);
-        _stack.push(NOBR);
+        _checkModifier(NOBR);
+        writeShort(0x1f10);
+        _push(NOBR);
     }
 
     /**
@@ -432,9 +783,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(NOBR)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x11);
-        _stack.pop();
+        writeShort(0x1f11);
+        _pop();
     }
 
     /**
@@ -446,12 +796,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(EMPHASIS) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x12);
-        _stack.push(EMPHASIS);
+        _checkModifier(EMPHASIS);
+        writeShort(0x1f12);
+        _push(EMPHASIS);
     }
 
     /**
@@ -466,9 +813,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(EMPHASIS)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x13);
-        _stack.pop();
+        writeShort(0x1f13);
+        _pop();
     }
 
     /**
@@ -481,14 +827,10 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(DECORATION) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0xe0);
-        write((type >>> 8) & 0xff);
-        write(type & 0xff);
-        _stack.push(DECORATION);
+        _checkModifier(DECORATION);
+        writeShort(0x1fe0);
+        writeShort(type);
+        _push(DECORATION);
     }
 
     /**
@@ -503,9 +845,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(DECORATION)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0xe1);
-        _stack.pop();
+        writeShort(0x1fe1);
+        _pop();
     }
 
     /**
@@ -517,14 +858,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(KEYWORD) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x41);
-        write(0x01);
-        write(0x00);
-        _stack.push(KEYWORD);
+        _checkModifier(KEYWORD);
+        writeInt(0x1f410100);
+        _push(KEYWORD);
     }
 
     /**
@@ -539,9 +875,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(KEYWORD)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x61);
-        _stack.pop();
+        writeShort(0x1f61);
+        _pop();
     }
 
     /**
@@ -553,12 +888,9 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(REFERENCE) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x42);
-        _stack.push(REFERENCE);
+        _checkModifier(REFERENCE);
+        writeShort(0x1f42);
+        _push(REFERENCE);
     }
 
     /**
@@ -574,13 +906,10 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(REFERENCE)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x62);
-        byte[] b = new byte[6];
-        Arrays.fill(b, (byte)0x00);
-        write(b, 0, b.length);
+        writeShort(0x1f62);
+        write(ZERO, 0, 6);
         _ref.putBodyRef(_file, getSize() - 6, name);
-        _stack.pop();
+        _pop();
     }
 
     /**
@@ -594,25 +923,17 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(ICGRAPHIC) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x3c);
+        _checkModifier(ICGRAPHIC);
+        writeShort(0x1f3c);
         if ("bmp".equals(format)) {
-            write(0x00);
-            write(0x09);
+            writeShort(0x0009);
         } else {
-            write(0x12);
-            write(0x09);
-        }
-        write(0x00);
-        write(0x01);
-        byte[] b = new byte[14];
-        Arrays.fill(b, (byte)0x00);
-        write(b, 0, b.length);
+            writeShort(0x1209);
+        }
+        writeShort(0x0001);
+        write(ZERO, 0, 14);
         _ref.putGraphicRef(_file, getSize() - 6, name);
-        _stack.push(ICGRAPHIC);
+        _push(ICGRAPHIC);
     }
 
     /**
@@ -627,9 +948,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(ICGRAPHIC)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x5c);
-        _stack.pop();
+        writeShort(0x1f5c);
+        _pop();
     }
 
 
@@ -644,25 +964,17 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(CGRAPHIC) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x4d);
+        _checkModifier(CGRAPHIC);
+        writeShort(0x1f4d);
         if ("bmp".equals(format)) {
-            write(0x00);
-            write(0x09);
+            writeShort(0x0009);
         } else {
-            write(0x12);
-            write(0x09);
-        }
-        write(0x00);
-        write(0x01);
-        byte[] b = new byte[14];
-        Arrays.fill(b, (byte)0x00);
-        write(b, 0, b.length);
+            writeShort(0x1209);
+        }
+        writeShort(0x0001);
+        write(ZERO, 0, 14);
         _ref.putGraphicRef(_file, getSize() - 6, name);
-        _stack.push(CGRAPHIC);
+        _push(CGRAPHIC);
     }
 
     /**
@@ -677,9 +989,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(CGRAPHIC)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x6d);
-        _stack.pop();
+        writeShort(0x1f6d);
+        _pop();
     }
 
     /**
@@ -693,17 +1004,12 @@ public class TextOutputStream extends BlockOutputStream {
         if (_isModifier(NARROW)) {
             endNarrow();
         }
-        if (_stack.search(SOUND) > 0) {
-            throw new IOException("duplicate modifier");
-        }
-        write(0x1f);
-        write(0x4a);
+        _checkModifier(SOUND);
+        writeShort(0x1f4a);
         if ("wav".equals(format)) {
-            write(0x00);
-            write(0x01);
+            writeShort(0x0001);
         } else {
-            write(0x00);
-            write(0x02);
+            writeShort(0x0002);
         }
         int flags = 0x0000;
         AudioFormat audioFormat = _ref.getAudioFormat(name);
@@ -731,13 +1037,10 @@ public class TextOutputStream extends BlockOutputStream {
         } else {
             flags = 0x0012;
         }
-        write(flags >>> 8);
-        write(flags);
-        byte[] b = new byte[12];
-        Arrays.fill(b, (byte)0x00);
-        write(b, 0, b.length);
+        writeShort(flags);
+        write(ZERO, 0, 12);
         _ref.putSoundRef(_file, getSize() - 12, name);
-        _stack.push(SOUND);
+        _push(SOUND);
     }
 
     /**
@@ -752,9 +1055,8 @@ public class TextOutputStream extends BlockOutputStream {
         if (!_isModifier(SOUND)) {
             throw new IOException("unexpected the end of modifier");
         }
-        write(0x1f);
-        write(0x6a);
-        _stack.pop();
+        writeShort(0x1f6a);
+        _pop();
     }
 }
 
@@ -70,7 +70,7 @@ public class Word implements Comparable<Word> {
         int code = 0;
         int n = _word.length;
         for (int i = 0; i < n; i++) {
-            code = code * 31 + _word[n];
+            code = code * 31 + _word[i];
         }
         code += _tag.hashCode();
         return code;
@@ -101,24 +101,35 @@ public class Word implements Comparable<Word> {
      */
     @Override
     public int compareTo(final Word word) {
-        byte[] b = word.getWord();
-        int len1 = _word.length;
-        int len2 = b.length;
+        int comp = compare(_word, 0, _word.length, word._word, 0, word._word.length);
+        if (comp != 0) {
+            return comp;
+        }
+        return _tag.compareTo(word._tag);
+    }
+
+    /**
+     * 2つの検索語を符号なしバイト列として比較します。
+     * 共通部分が等しい場合は短い方を小さいとみなします。
+     *
+     * @param b1 検索語1を含むバイト配列
+     * @param off1 検索語1の開始位置
+     * @param len1 検索語1のバイト数
+     * @param b2 検索語2を含むバイト配列
+     * @param off2 検索語2の開始位置
+     * @param len2 検索語2のバイト数
+     * @return 検索語1が小さい場合は負の整数、等しい場合はゼロ、大きい場合は正の整数
+     */
+    static int compare(final byte[] b1, final int off1, final int len1,
+                       final byte[] b2, final int off2, final int len2) {
         int len = Math.min(len1, len2);
-        int c1, c2, comp;
         for (int i = 0; i < len; i++) {
-            c1 = _word[i] & 0xff;
-            c2 = b[i] & 0xff;
-            comp = c1 - c2;
+            int comp = (b1[off1 + i] & 0xff) - (b2[off2 + i] & 0xff);
             if (comp != 0) {
                 return comp;
             }
         }
-        comp = len1 - len2;
-        if (comp != 0) {
-            return comp;
-        }
-        return _tag.compareTo(word.getReferenceTag());
+        return len1 - len2;
     }
 
     /**
@@ -1,25 +1,53 @@
 package io.github.eb4j.xml2eb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.github.eb4j.util.ByteUtil;
-import io.github.eb4j.xml2eb.util.UnicodeUtil;
+import io.github.eb4j.xml2eb.util.JisUtil;
+import io.github.eb4j.xml2eb.util.SortUtil;
 
 /**
  * 検索語セット。
+ * <p>
+ * 検索語は1つのバイト配列に連続して格納し、参照タグ名称はタグ番号で保持します。
+ * 追加時には整列せず、最初に参照された時点で添字を一度だけ整列し、
+ * 検索語と参照タグ名称がともに等しいエントリを取り除きます。
+ * <p>
+ * 符号化した検索語には登録されている異表記変換 (既定では片仮名から平仮名) を適用し、
+ * 元の検索語と異なる異表記は同じ参照タグ名称のエントリとしてまとめて追加します。
+ * <p>
+ * メモリ上限が設定されている場合、使用量が上限に達した時点で
+ * 整列済みのエントリを一時ファイル (ラン) に書き出し、
+ * 反復子はすべてのランとメモリ上のエントリを併合しながら返します。
+ * この場合、反復子または読み込み元を取得できるのは一度だけです。
  *
  * @author Hisaya FUKUMOTO
  * @author Hiroshi Miura
  */
-public class WordSet extends TreeSet<Word> {
-    private static final long serialVersionUID = 20160001L;
+public class WordSet implements Iterable<Word> {
 
     /**
      * Direction ordinal word.
@@ -30,10 +58,49 @@ public class WordSet extends TreeSet<Word> {
      */
     public static final int DIRECTION_ENDWORD = 1;
 
+    /** 初期容量 */
+    private static final int INITIAL_CAPACITY = 256;
+    /** 1エントリあたりの管理領域のバイト数 (開始位置、バイト数、タグ番号) */
+    private static final int ENTRY_SIZE = 9;
+    /** 整列時に1エントリあたりに必要な作業領域のバイト数 (整列キー、整列順、併合用の一時領域) */
+    private static final int SORT_SIZE = 16;
+
     /** ログ */
-    private transient Logger _logger = null;
+    private Logger _logger = null;
     /** 単語の解析方向 */
     private int _direction = 0;
+    /** 検索語領域 */
+    private byte[] _arena = null;
+    /** 検索語領域の使用バイト数 */
+    private int _arenaSize = 0;
+    /** 検索語の開始位置 */
+    private int[] _offset = null;
+    /** 検索語のバイト数 */
+    private byte[] _length = null;
+    /** タグ番号 */
+    private int[] _tag = null;
+    /** エントリ数 */
+    private int _count = 0;
+    /** タグ番号マップ */
+    private Map<String, Integer> _tagMap = null;
+    /** 参照タグ名称リスト */
+    private List<String> _tagList = null;
+    /** 整列済みのエントリ番号 (未整列の場合はnull) */
+    private int[] _order = null;
+    /** 重複を除いたエントリ数 */
+    private int _size = 0;
+    /** 変換用バッファ */
+    private byte[] _buf = null;
+    /** メモリ上に保持する最大バイト数 (0の場合は無制限) */
+    private long _limit = 0L;
+    /** ランを書き出すディレクトリ */
+    private File _dir = null;
+    /** ランのリスト */
+    private List<File> _runList = null;
+    /** 反復子を取得済みかどうか */
+    private boolean _merged = false;
+    /** 異表記変換の配列 */
+    private WordVariant[] _variants = null;
 
 
     /**
@@ -45,93 +112,93 @@ public class WordSet extends TreeSet<Word> {
         super();
         _logger = LoggerFactory.getLogger(getClass());
         _direction = direction;
+        _arena = new byte[INITIAL_CAPACITY * 8];
+        _offset = new int[INITIAL_CAPACITY];
+        _length = new byte[INITIAL_CAPACITY];
+        _tag = new int[INITIAL_CAPACITY];
+        _tagMap = new HashMap<>();
+        _tagList = new ArrayList<>();
+        _buf = new byte[INITIAL_CAPACITY * 2];
+        _runList = new ArrayList<>();
+        _variants = new WordVariant[] {WordVariant.HIRAGANA};
+    }
+
+
+    /**
+     * エントリをメモリ上に保持する最大バイト数を設定します。
+     * 上限には確保済みの配列の容量と整列時の作業領域を含め、
+     * 上限に達した場合は整列済みのエントリを指定されたディレクトリに書き出します。
+     * ただし、1回に追加するエントリが上限を超える場合はそのまま保持します。
+     * 0を指定した場合はすべてのエントリをメモリ上に保持します。
+     *
+     * @param limit 最大バイト数
+     * @param dir ランを書き出すディレクトリ
+     */
+    public void setMemoryLimit(final long limit, final File dir) {
+        _limit = Math.max(0L, limit);
+        _dir = dir;
+        if (_count == 0) {
+            _shrink();
+        }
     }
 
 
+    /**
+     * 追加する検索語に適用する異表記変換を設定します。
+     * 以降に追加する検索語から適用します。
+     *
+     * @param variants 異表記変換 (指定しない場合は異表記を追加しない)
+     */
+    public void setVariants(final WordVariant... variants) {
+        _variants = variants.clone();
+    }
+
     /**
      * 単語エントリを追加します。
      *
      * @param word 単語
      * @param tag 参照名称
      * @exception InvalidCharacterException 無効な文字が見つかった場合
-     * @exception UnsupportedEncodingException EUC-JPをサポートしていない場合
      * @exception IOException 無効な単語を登録しようとした場合
      */
     public void add(final String word, final String tag) throws IOException {
         if (StringUtils.isBlank(word)) {
             return;
         }
-        String str = UnicodeUtil.sanitizeUnicode(word);
-        int len = str.length();
-        byte[] tmp = new byte[len * 2];
+        // ユニコードの矯正は変換表に含まれる
+        int len = word.length();
+        int size = len * 2 * (_variants.length + 1);
+        if (_buf.length < size) {
+            _buf = new byte[size];
+        }
+        byte[] buf = _buf;
         int idx = 0;
         for (int i = 0; i < len; i++) {
-            int codePoint = str.codePointAt(i);
-            if (Character.isSupplementaryCodePoint(codePoint)) {
-                // 補助文字
-                throw new InvalidCharacterException(codePoint);
-            }
-            String s = String.valueOf(Character.toChars(codePoint));
-            // Unicode -> EUC-JP
-            byte[] b = s.getBytes("EUC-JP");
-            if (ArrayUtils.isEmpty(b)) {
-                throw new InvalidCharacterException(codePoint);
-            } else {
-                int c1 = b[0] & 0xff;
-                int c2;
-                if (c1 == 0x3f && codePoint != '?') {
-                    // EUC-JPでない不明な文字
-                    throw new InvalidCharacterException(codePoint);
-                } else if (c1 == 0x20 || c1 == 0x27 || c1 == 0x2d) {
-                    // ' ', '\'', '-'は削除
-                    continue;
-                } else if (c1 >= 0x21 && c1 <= 0x7e) {
-                    // 小文字は大文字に変換
-                    if (c1 >= 0x61 && c1 <= 0x7a) {
-                        c1 -= 0x20;
-                    }
-                    // G0(ASCII)はJISX0208に変換
-                    int c = ByteUtil.asciiToJISX0208(c1);
-                    tmp[idx++] = (byte)((c >>> 8) & 0xff);
-                    tmp[idx++] = (byte)(c & 0xff);
-                } else if (c1 >= 0xa1 && c1 <= 0xfe) {
-                    // G1(JISX0208)はJISX0208に変換
-                    c2 = b[1] & 0xff;
-                    if (c2 >= 0xa1 && c2 <= 0xfe) {
-                        if (c1 == 0xa3 && c2 >= 0xe1 && c2 <= 0xfa) {
-                            // 小文字は大文字に変換
-                            c1 = c1 & 0x7f;
-                            c2 = (c2 - 0x20) & 0x7f;
-                            tmp[idx++] = (byte)(c1 & 0xff);
-                            tmp[idx++] = (byte)(c2 & 0xff);
-                        } else if (c1 == 0xa1
-                                   && (c2 == 0xa1 || c2 == 0xc7 || c2 == 0xdd
-                                       || c2 == 0xa6 || c2 == 0xbe)) {
-                            // '　', '’', '−', '・', '‐'は削除
-                            continue;
-                        } else {
-                            c1 = c1 & 0x7f;
-                            c2 = c2 & 0x7f;
-                            tmp[idx++] = (byte)(c1 & 0xff);
-                            tmp[idx++] = (byte)(c2 & 0xff);
-                        }
-                    } else {
-                        throw new InvalidCharacterException(codePoint);
+            char ch = word.charAt(i);
+            int c = JisUtil.getCode(ch);
+            switch (JisUtil.getType(ch)) {
+                case JisUtil.TYPE_NARROW:
+                    if (c == 0x2121 || c == 0x2147 || c == 0x215d) {
+                        // ' ', '\'', '-'は削除
+                        continue;
                     }
-                } else if (c1 == 0x8e) {
-                    // G2(JISX0201)はJISX0208に変換
-                    c2 = b[1] & 0xff;
-                    if (c2 >= 0xa1 && c2 <= 0xdf) {
-                        int c = ByteUtil.jisx0201ToJISX0208(c2);
-                        tmp[idx++] = (byte)((c >>> 8) & 0xff);
-                        tmp[idx++] = (byte)(c & 0xff);
-                    } else {
-                        throw new InvalidCharacterException(codePoint);
+                    break;
+                case JisUtil.TYPE_WIDE:
+                    if (c == 0x2121 || c == 0x2147 || c == 0x215d
+                        || c == 0x2126 || c == 0x213e) {
+                        // '　', '’', '−', '・', '‐'は削除
+                        continue;
                     }
-                } else {
-                    throw new InvalidCharacterException(codePoint);
-                }
+                    break;
+                default:
+                    throw new InvalidCharacterException(word.codePointAt(i));
+            }
+            if (c >= 0x2361 && c <= 0x237a) {
+                // 小文字は大文字に変換
+                c -= 0x20;
             }
+            buf[idx++] = (byte)((c >>> 8) & 0xff);
+            buf[idx++] = (byte)(c & 0xff);
         }
         if (idx == 0) {
             _logger.warn("word is empty: '" + word + "' [id=" + tag + "]");
@@ -141,37 +208,665 @@ public class WordSet extends TreeSet<Word> {
             throw new IOException("too long word: '" + word + "' [id=" + tag + "]");
         }
 
-        byte[] buf = new byte[idx];
-        System.arraycopy(tmp, 0, buf, 0, idx);
         if (_direction == DIRECTION_ENDWORD) {
-            ByteUtil.reverseWord(buf);
+            _reverse(buf, idx);
+        }
+        // 異表記を元の検索語の後に並べる
+        int n = 1;
+        for (WordVariant variant : _variants) {
+            if (variant.convert(buf, 0, buf, n * idx, idx) && !_contains(buf, idx, n)) {
+                n++;
+            }
+        }
+        int tagId = _getTagId(tag);
+        for (int i = 0; i < n; i++) {
+            _trace(buf, i * idx, idx, word);
         }
+        _append(buf, idx, n, tagId);
+    }
+
+    /**
+     * 重複を除いたエントリ数を返します。
+     * ランを書き出した場合は、反復子ですべてのエントリを返すまで確定しません。
+     *
+     * @return エントリ数
+     */
+    public int size() {
+        if (_runList.isEmpty()) {
+            _sort();
+        }
+        return _size;
+    }
+
+    /**
+     * エントリが存在しないかどうかを返します。
+     *
+     * @return エントリが存在しない場合はtrue、そうでない場合はfalse
+     */
+    public boolean isEmpty() {
+        return _count == 0 && _runList.isEmpty();
+    }
+
+    /**
+     * 検索語の順にエントリを返す反復子を返します。
+     * ランの読み込みでエラーが発生した場合、反復子は
+     * {@link UncheckedIOException}をスローします。
+     *
+     * @return 反復子
+     */
+    @Override
+    public Iterator<Word> iterator() {
+        final WordReader reader;
         try {
-            _logger.trace("add word: " + new String(buf, "x-JIS0208") + " [" + word + "]");
+            reader = reader();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<Word>() {
+            private Word _next = _read();
+
+            @Override
+            public boolean hasNext() {
+                return _next != null;
+            }
+
+            @Override
+            public Word next() {
+                if (_next == null) {
+                    throw new NoSuchElementException();
+                }
+                Word word = _next;
+                _next = _read();
+                return word;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            /**
+             * 次のエントリを読み込みます。
+             *
+             * @return エントリ (存在しない場合はnull)
+             */
+            private Word _read() {
+                try {
+                    if (!reader.next()) {
+                        return null;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                int off = reader.getOffset();
+                byte[] b = Arrays.copyOfRange(reader.getBuffer(), off, off + reader.getLength());
+                return new Word(b, getTag(reader.getTagId()));
+            }
+        };
+    }
+
+    /**
+     * 検索語の順にエントリを読み込む読み込み元を返します。
+     * 読み込み元は内部のバッファを直接参照するため、エントリごとのオブジェクトを生成しません。
+     *
+     * @return 読み込み元
+     * @exception IOException ランを開けなかった場合
+     */
+    WordReader reader() throws IOException {
+        _sort();
+        if (_runList.isEmpty()) {
+            return new MemoryReader();
+        }
+        if (_merged) {
+            throw new IllegalStateException("word set already merged");
+        }
+        _merged = true;
+        return new MergeReader();
+    }
+
+    /**
+     * 指定されたタグ番号の参照タグ名称を返します。
+     *
+     * @param id タグ番号
+     * @return 参照タグ名称
+     */
+    String getTag(final int id) {
+        return _tagList.get(id);
+    }
+
+    /**
+     * 登録されている参照タグ名称の数を返します。
+     *
+     * @return 参照タグ名称の数
+     */
+    int getTagCount() {
+        return _tagList.size();
+    }
+
+    /**
+     * 指定された参照タグ名称のタグ番号を返します。
+     *
+     * @param tag 参照タグ名称
+     * @return タグ番号
+     */
+    private int _getTagId(final String tag) {
+        Integer id = _tagMap.get(tag);
+        if (id != null) {
+            return id.intValue();
+        }
+        int n = _tagList.size();
+        _tagMap.put(tag, Integer.valueOf(n));
+        _tagList.add(tag);
+        return n;
+    }
+
+    /**
+     * 変換済みの検索語が、それより前に並べた検索語のいずれかと等しいかどうかを返します。
+     *
+     * @param b 検索語を並べたバイト配列
+     * @param len 検索語1つのバイト数
+     * @param n 比較する検索語の位置
+     * @return 等しい検索語が存在する場合はtrue、そうでない場合はfalse
+     */
+    private boolean _contains(final byte[] b, final int len, final int n) {
+        for (int i = 0; i < n; i++) {
+            if (Word.compare(b, i * len, len, b, n * len, len) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 同じバイト数の検索語を同じタグ番号のエントリとしてまとめて追加します。
+     *
+     * @param b 検索語を並べたバイト配列
+     * @param len 検索語1つのバイト数
+     * @param n 検索語の数
+     * @param tagId タグ番号
+     * @exception IOException ランの書き出しでエラーが発生した場合
+     */
+    private void _append(final byte[] b, final int len, final int n, final int tagId)
+        throws IOException {
+        int total = len * n;
+        int arenaNeed = _arenaSize + total;
+        int entryNeed = _count + n;
+        if (_limit > 0 && _count > 0
+            && _getMemorySize(Math.max(_arena.length, arenaNeed),
+                              Math.max(_offset.length, entryNeed)) > _limit) {
+            _spill();
+            arenaNeed = total;
+            entryNeed = n;
+        }
+        if (arenaNeed > _arena.length) {
+            long size = _arena.length * 2L;
+            if (_limit > 0) {
+                // 配列の拡張後も上限を超えない容量に抑える
+                int entries = Math.max(_offset.length, entryNeed);
+                size = Math.min(size, _limit - _getMemorySize(0, entries));
+            }
+            _arena = Arrays.copyOf(_arena, (int)Math.max(size, arenaNeed));
+        }
+        if (entryNeed > _offset.length) {
+            long size = _offset.length * 2L;
+            if (_limit > 0) {
+                size = Math.min(size,
+                                (_limit - _arena.length) / (ENTRY_SIZE + SORT_SIZE));
+            }
+            size = Math.max(size, entryNeed);
+            _offset = Arrays.copyOf(_offset, (int)size);
+            _length = Arrays.copyOf(_length, (int)size);
+            _tag = Arrays.copyOf(_tag, (int)size);
+        }
+        System.arraycopy(b, 0, _arena, _arenaSize, total);
+        for (int i = 0; i < n; i++) {
+            _offset[_count] = _arenaSize;
+            _length[_count] = (byte)len;
+            _tag[_count] = tagId;
+            _arenaSize += len;
+            _count++;
+        }
+        _order = null;
+    }
+
+    /**
+     * 指定された容量の配列と整列時の作業領域に必要なバイト数を返します。
+     *
+     * @param arena 検索語領域のバイト数
+     * @param entries エントリの容量
+     * @return バイト数
+     */
+    private static long _getMemorySize(final int arena, final int entries) {
+        return arena + (long)entries * (ENTRY_SIZE + SORT_SIZE);
+    }
+
+    /**
+     * エントリを検索語、参照タグ名称の順に整列し、重複を取り除きます。
+     * エントリ数が多い場合は並行して整列します。
+     * 整列済みの場合は何もしません。
+     *
+     */
+    private void _sort() {
+        if (_order != null) {
+            return;
+        }
+        // 参照タグ名称の順位
+        int ntag = _tagList.size();
+        final String[] names = _tagList.toArray(new String[ntag]);
+        int[] byName = SortUtil.sortedIndex(ntag, new SortUtil.IndexComparator() {
+                @Override
+                public int compare(final int i, final int j) {
+                    return names[i].compareTo(names[j]);
+                }
+            });
+        final int[] rank = new int[ntag];
+        for (int i = 0; i < ntag; i++) {
+            rank[byName[i]] = i;
+        }
+
+        // 検索語の先頭8バイトを符号なし整数のキーとし、キーが等しい場合のみ全体を比較
+        final long[] key = new long[_count];
+        for (int i = 0; i < _count; i++) {
+            key[i] = _getKey(i);
+        }
+        int[] order = SortUtil.parallelSortedIndex(_count, new SortUtil.IndexComparator() {
+                @Override
+                public int compare(final int i, final int j) {
+                    int comp = Long.compareUnsigned(key[i], key[j]);
+                    if (comp != 0) {
+                        return comp;
+                    }
+                    comp = _compareWord(i, j);
+                    if (comp != 0) {
+                        return comp;
+                    }
+                    return rank[_tag[i]] - rank[_tag[j]];
+                }
+            });
+        int size = 0;
+        for (int i = 0; i < _count; i++) {
+            int n = order[i];
+            if (size > 0) {
+                int prev = order[size - 1];
+                if (_tag[prev] == _tag[n] && _compareWord(prev, n) == 0) {
+                    continue;
+                }
+            }
+            order[size++] = n;
+        }
+        _order = order;
+        _size = size;
+    }
+
+    /**
+     * メモリ上のエントリを整列してランに書き出し、メモリ上のエントリを破棄します。
+     * ランには検索語のバイト数、検索語、タグ番号の順に書き込みます。
+     *
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _spill() throws IOException {
+        _sort();
+        File file = File.createTempFile("word", ".run", _dir);
+        _logger.info("write word run: " + file.getPath() + " (" + _size + " words)");
+        _runList.add(file);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+            for (int i = 0; i < _size; i++) {
+                int n = _order[i];
+                int len = _length[n] & 0xff;
+                out.writeByte(len);
+                out.write(_arena, _offset[n], len);
+                out.writeInt(_tag[n]);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        _arenaSize = 0;
+        _count = 0;
+        _order = null;
+        _size = 0;
+        _shrink();
+    }
+
+    /**
+     * 空の配列の容量が上限を超える場合は、上限の半分に収まるまで縮小します。
+     *
+     */
+    private void _shrink() {
+        if (_limit <= 0 || _getMemorySize(_arena.length, _offset.length) <= _limit) {
+            return;
+        }
+        long size = _limit / 4;
+        _arena = new byte[(int)Math.max(1L, size)];
+        int entries = (int)Math.max(1L, size / (ENTRY_SIZE + SORT_SIZE));
+        _offset = new int[entries];
+        _length = new byte[entries];
+        _tag = new int[entries];
+    }
+
+    /**
+     * ランを削除します。
+     *
+     */
+    private void _deleteRuns() {
+        for (File file : _runList) {
+            if (file.exists() && !file.delete()) {
+                _logger.warn("failed to delete file: " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * エントリの検索語の先頭8バイトをビッグエンディアンで並べた整列キーを返します。
+     * 8バイトに満たない部分は0で埋めます。
+     *
+     * @param n エントリ番号
+     * @return 整列キー
+     */
+    private long _getKey(final int n) {
+        int off = _offset[n];
+        int len = Math.min(_length[n] & 0xff, 8);
+        long key = 0L;
+        for (int i = 0; i < len; i++) {
+            key = (key << 8) | (_arena[off + i] & 0xff);
+        }
+        return key << ((8 - len) * 8);
+    }
+
+    /**
+     * 2つのエントリの検索語を符号なしバイト列として比較します。
+     *
+     * @param i エントリ番号1
+     * @param j エントリ番号2
+     * @return エントリ番号1の検索語が小さい場合は負、等しい場合は0、大きい場合は正の値
+     */
+    private int _compareWord(final int i, final int j) {
+        return Word.compare(_arena, _offset[i], _length[i] & 0xff,
+                            _arena, _offset[j], _length[j] & 0xff);
+    }
+
+    /**
+     * 検索語を文字単位で反転します。
+     *
+     * @param b 検索語
+     * @param len 検索語のバイト数
+     */
+    private void _reverse(final byte[] b, final int len) {
+        for (int i = 0, j = len - 2; i < j; i += 2, j -= 2) {
+            byte b1 = b[i];
+            byte b2 = b[i + 1];
+            b[i] = b[j];
+            b[i + 1] = b[j + 1];
+            b[j] = b1;
+            b[j + 1] = b2;
+        }
+    }
+
+    /**
+     * 追加する検索語をログに出力します。
+     *
+     * @param b 検索語を含むバイト配列
+     * @param off 検索語の開始位置
+     * @param len 検索語のバイト数
+     * @param word 元の単語
+     */
+    private void _trace(final byte[] b, final int off, final int len, final String word) {
+        if (!_logger.isTraceEnabled()) {
+            return;
+        }
+        try {
+            _logger.trace("add word: " + new String(b, off, len, "x-JIS0208")
+                          + " [" + word + "]");
         } catch (UnsupportedEncodingException ignored) {
         }
-        Word wd = new Word(buf, tag);
-        if (!contains(wd)) {
-            add(wd);
+    }
+
+
+    /**
+     * 整列済みのエントリを順に読み込む読み込み元。
+     * 現在のエントリの検索語は内部のバッファを直接参照します。
+     */
+    abstract static class WordReader {
+
+        /** 現在の検索語を含むバイト配列 */
+        protected byte[] _word = null;
+        /** 現在の検索語の開始位置 */
+        protected int _off = 0;
+        /** 現在の検索語のバイト数 */
+        protected int _len = 0;
+        /** 現在のタグ番号 */
+        protected int _tagId = 0;
+
+
+        /**
+         * 次のエントリに進みます。
+         *
+         * @return 次のエントリが存在する場合はtrue、そうでない場合はfalse
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        abstract boolean next() throws IOException;
+
+        /**
+         * 読み込み元を閉じます。
+         *
+         */
+        void close() {
+        }
+
+        /**
+         * 現在の検索語を含むバイト配列を返します。
+         *
+         * @return バイト配列
+         */
+        byte[] getBuffer() {
+            return _word;
+        }
+
+        /**
+         * 現在の検索語の開始位置を返します。
+         *
+         * @return 開始位置
+         */
+        int getOffset() {
+            return _off;
+        }
+
+        /**
+         * 現在の検索語のバイト数を返します。
+         *
+         * @return バイト数
+         */
+        int getLength() {
+            return _len;
+        }
+
+        /**
+         * 現在のエントリのタグ番号を返します。
+         *
+         * @return タグ番号
+         */
+        int getTagId() {
+            return _tagId;
+        }
+    }
+
+    /**
+     * ランの読み込み元。
+     */
+    private static final class RunReader extends WordReader {
+
+        /** 入力ストリーム */
+        private DataInputStream _in = null;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param file ラン
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private RunReader(final File file) throws IOException {
+            super();
+            _word = new byte[255];
+            _in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
         }
 
-        // 片仮名が含まれる場合は、平仮名に変換して追加
-        boolean katakana = false;
-        for (int i = 0; i < idx; i += 2) {
-            int c = buf[i] & 0xff;
-            if (c == 0x25) {
-                buf[i] = (byte)0x24;
-                katakana = true;
+
+        @Override
+        boolean next() throws IOException {
+            int len = _in.read();
+            if (len < 0) {
+                return false;
+            }
+            try {
+                _in.readFully(_word, 0, len);
+                _tagId = _in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("unexpected end of word run", e);
             }
+            _len = len;
+            return true;
+        }
+
+        @Override
+        void close() {
+            IOUtils.closeQuietly(_in);
+        }
+    }
+
+    /**
+     * メモリ上のエントリの読み込み元。
+     */
+    private final class MemoryReader extends WordReader {
+
+        /** 整列済みのエントリ番号 */
+        private int[] _order = null;
+        /** エントリ数 */
+        private int _count = 0;
+        /** 次のエントリの整列順の番号 */
+        private int _idx = 0;
+
+
+        /**
+         * コンストラクタ。
+         *
+         */
+        private MemoryReader() {
+            super();
+            _word = _arena;
+            _order = WordSet.this._order;
+            _count = _size;
         }
-        if (katakana) {
+
+
+        @Override
+        boolean next() {
+            if (_idx >= _count) {
+                return false;
+            }
+            int n = _order[_idx++];
+            _off = _offset[n];
+            _len = _length[n] & 0xff;
+            _tagId = _tag[n];
+            return true;
+        }
+    }
+
+    /**
+     * ランとメモリ上のエントリを併合して検索語の順に返す読み込み元。
+     * 検索語と参照タグ名称がともに等しいエントリは1つだけ返します。
+     * すべてのエントリを返した時点でランを削除します。
+     */
+    private final class MergeReader extends WordReader implements Comparator<WordReader> {
+
+        /** 読み込み元のキュー */
+        private PriorityQueue<WordReader> _queue = null;
+        /** 最初のエントリかどうか */
+        private boolean _first = true;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private MergeReader() throws IOException {
+            super();
+            _word = new byte[255];
+            _queue = new PriorityQueue<>(_runList.size() + 1, this);
+            try {
+                for (File file : _runList) {
+                    _offer(new RunReader(file));
+                }
+                _offer(new MemoryReader());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            _size = 0;
+        }
+
+
+        @Override
+        public int compare(final WordReader r1, final WordReader r2) {
+            int comp = Word.compare(r1._word, r1._off, r1._len, r2._word, r2._off, r2._len);
+            if (comp != 0 || r1._tagId == r2._tagId) {
+                return comp;
+            }
+            return _tagList.get(r1._tagId).compareTo(_tagList.get(r2._tagId));
+        }
+
+        @Override
+        boolean next() throws IOException {
             try {
-                _logger.trace("add word: " + new String(buf, "x-JIS0208") + " [" + word + "]");
-            } catch (UnsupportedEncodingException ignored) {
+                while (!_queue.isEmpty()) {
+                    WordReader reader = _queue.poll();
+                    int len = reader._len;
+                    boolean dup = !_first && reader._tagId == _tagId
+                        && Word.compare(reader._word, reader._off, len, _word, 0, _len) == 0;
+                    if (!dup) {
+                        System.arraycopy(reader._word, reader._off, _word, 0, len);
+                        _len = len;
+                        _tagId = reader._tagId;
+                        _first = false;
+                        _size++;
+                    }
+                    _offer(reader);
+                    if (!dup) {
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        void close() {
+            for (WordReader reader : _queue) {
+                reader.close();
             }
-            wd = new Word(buf, tag);
-            if (!contains(wd)) {
-                add(wd);
+            _queue.clear();
+            _deleteRuns();
+        }
+
+        /**
+         * 読み込み元を次のエントリに進めてキューに追加します。
+         * エントリが存在しない場合は読み込み元を閉じます。
+         *
+         * @param reader 読み込み元
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private void _offer(final WordReader reader) throws IOException {
+            if (reader.next()) {
+                _queue.add(reader);
+            } else {
+                reader.close();
             }
         }
     }
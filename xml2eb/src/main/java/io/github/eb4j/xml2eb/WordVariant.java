@@ -0,0 +1,110 @@
+package io.github.eb4j.xml2eb;
+
+/**
+ * 検索語の異表記変換クラス。
+ * <p>
+ * JIS X 0208の2バイトコードで符号化済みの検索語を、
+ * あらかじめ作成した変換表で文字単位に変換します。
+ * 変換表に登録されていない文字はそのまま残します。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+public final class WordVariant {
+
+    /** 片仮名を平仮名に変換する異表記 */
+    public static final WordVariant HIRAGANA = _createHiragana();
+
+    /** 区点の数 */
+    private static final int CELL = 94;
+
+    /** 変換表 (変換しない文字は0) */
+    private char[] _table = null;
+
+
+    /**
+     * コンストラクタ。
+     *
+     * @param from 変換元の文字コードの配列
+     * @param to 変換先の文字コードの配列
+     * @exception IllegalArgumentException 配列の長さが異なる場合、
+     *                                     またはJIS X 0208の範囲外の文字コードが含まれる場合
+     */
+    public WordVariant(final int[] from, final int[] to) {
+        super();
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("length mismatch: "
+                                               + from.length + " != " + to.length);
+        }
+        _table = new char[CELL * CELL];
+        for (int i = 0; i < from.length; i++) {
+            int idx = _getIndex(from[i]);
+            if (idx < 0 || _getIndex(to[i]) < 0) {
+                throw new IllegalArgumentException("invalid code: 0x"
+                                                   + Integer.toHexString(from[i]) + " -> 0x"
+                                                   + Integer.toHexString(to[i]));
+            }
+            _table[idx] = (char)to[i];
+        }
+    }
+
+
+    /**
+     * 検索語を変換します。
+     * 変換元と変換先は同じ配列の同じ位置でもかまいません。
+     *
+     * @param src 変換元の検索語を含むバイト配列
+     * @param srcOff 変換元の開始位置
+     * @param dst 変換先のバイト配列
+     * @param dstOff 変換先の開始位置
+     * @param len 検索語のバイト数
+     * @return 1文字以上変換した場合はtrue、そうでない場合はfalse
+     */
+    public boolean convert(final byte[] src, final int srcOff,
+                           final byte[] dst, final int dstOff, final int len) {
+        boolean changed = false;
+        for (int i = 0; i + 1 < len; i += 2) {
+            int c = ((src[srcOff + i] & 0xff) << 8) | (src[srcOff + i + 1] & 0xff);
+            int idx = _getIndex(c);
+            if (idx >= 0 && _table[idx] != 0) {
+                c = _table[idx];
+                changed = true;
+            }
+            dst[dstOff + i] = (byte)((c >>> 8) & 0xff);
+            dst[dstOff + i + 1] = (byte)(c & 0xff);
+        }
+        return changed;
+    }
+
+    /**
+     * 文字コードに対応する変換表の位置を返します。
+     *
+     * @param code 文字コード
+     * @return 変換表の位置 (範囲外の場合は-1)
+     */
+    private static int _getIndex(final int code) {
+        int hi = ((code >>> 8) & 0xff) - 0x21;
+        int lo = (code & 0xff) - 0x21;
+        if (code > 0xffff || hi < 0 || hi >= CELL || lo < 0 || lo >= CELL) {
+            return -1;
+        }
+        return hi * CELL + lo;
+    }
+
+    /**
+     * 片仮名 (第5区) を平仮名 (第4区) の同じ点に変換する異表記を作成します。
+     *
+     * @return 異表記
+     */
+    private static WordVariant _createHiragana() {
+        int n = CELL;
+        int[] from = new int[n];
+        int[] to = new int[n];
+        for (int i = 0; i < n; i++) {
+            from[i] = 0x2521 + i;
+            to[i] = 0x2421 + i;
+        }
+        return new WordVariant(from, to);
+    }
+}
+
+// end of WordVariant.java
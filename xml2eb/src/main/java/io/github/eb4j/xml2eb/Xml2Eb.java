@@ -1,15 +1,24 @@
 package io.github.eb4j.xml2eb;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
@@ -83,6 +92,226 @@ public class Xml2Eb {
     private File _outdir = null;
     /** ドキュメント */
     private Document _doc = null;
+    /** ストリーム読み込みを行うかどうか */
+    private boolean _streaming = false;
+    /** ストリーム読み込み */
+    private BookStreamReader _reader = null;
+    /** 一時データをメモリ上に保持する最大バイト数 */
+    private long _memoryLimit = 0L;
+    /** 一時データ格納 */
+    private SectionStore _store = null;
+    /** 副本を並行して変換するスレッド数 */
+    private int _threads = 1;
+    /** 検索語セットごとにメモリ上に保持する最大バイト数 */
+    private long _indexMemoryLimit = 0L;
+    /** インデックスのリーフブロックの充填率 */
+    private float _indexFillFactor = 1.0f;
+    /** 見出し/本文の符号化済みテキストのキャッシュの最大バイト数 */
+    private long _textCacheSize = 0L;
+    /** 副本内のitem要素を並行して符号化するスレッド数 */
+    private int _itemThreads = 1;
+
+
+    /**
+     * item要素を符号化したチャンク。
+     * 見出しと本文のバイト列と、チャンク内の位置で登録した参照位置を保持します。
+     */
+    private static final class ItemChunk {
+
+        /** 参照用タグ名称 */
+        private String _id = null;
+        /** head要素が存在するかどうか */
+        private boolean _hasHead = false;
+        /** 見出しを符号化したストリーム */
+        private TextOutputStream _head = null;
+        /** 見出しのバイト列 */
+        private byte[] _headData = null;
+        /** 見出しの参照情報 */
+        private Reference _headRef = null;
+        /** body要素が存在するかどうか */
+        private boolean _hasBody = false;
+        /** 本文を符号化したストリーム */
+        private TextOutputStream _body = null;
+        /** 本文のバイト列 */
+        private byte[] _bodyData = null;
+        /** 本文の参照情報 */
+        private Reference _bodyRef = null;
+        /** 検索語リスト */
+        private List<String> _wordList = new ArrayList<>();
+        /** キーワードリスト */
+        private List<String> _keywordList = new ArrayList<>();
+
+
+        /**
+         * コンストラクタ。
+         *
+         */
+        private ItemChunk() {
+            super();
+        }
+    }
+
+
+    /**
+     * item要素を複数のスレッドで符号化し、チャンクを元の順に書き込むハンドラ。
+     * item要素は個別のドキュメントに複製してから符号化します。
+     * 符号化中のチャンク数には上限があり、上限に達した場合は
+     * 呼び出し元のスレッドで最も古いチャンクを書き込みます。
+     * 符号化済みテキストのキャッシュは、スレッドごとに見出し/本文それぞれで保持します。
+     */
+    private final class ItemWriter implements BookStreamReader.ItemHandler {
+
+        /** スレッドプール */
+        private ExecutorService _executor = null;
+        /** 符号化中のチャンク */
+        private ArrayDeque<Future<ItemChunk>> _queue = null;
+        /** 符号化中のチャンク数の上限 */
+        private int _max = 0;
+        /** item要素を複製するドキュメントの生成 */
+        private DocumentBuilder _builder = null;
+        /** 見出しファイル */
+        private File _headFile = null;
+        /** 見出し出力ストリーム */
+        private TextOutputStream _head = null;
+        /** 本文ファイル */
+        private File _bodyFile = null;
+        /** 本文出力ストリーム */
+        private TextOutputStream _body = null;
+        /** 前方一致検索語セット */
+        private WordSet _wordSet = null;
+        /** 後方一致検索語セット */
+        private WordSet _endwordSet = null;
+        /** キーワードセット */
+        private WordSet _keywordSet = null;
+        /** 参照情報 */
+        private Reference _ref = null;
+        /** スレッドごとの見出しの符号化済みテキストのキャッシュ */
+        private ThreadLocal<TextOutputStream.TextCache> _headCache = null;
+        /** スレッドごとの本文の符号化済みテキストのキャッシュ */
+        private ThreadLocal<TextOutputStream.TextCache> _bodyCache = null;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param threads スレッド数
+         * @param headFile 見出しファイル
+         * @param head 見出し出力ストリーム
+         * @param bodyFile 本文ファイル
+         * @param body 本文出力ストリーム
+         * @param wordSet 前方一致検索語セット
+         * @param endwordSet 後方一致検索語セット
+         * @param keywordSet キーワードセット
+         * @param ref 参照情報
+         * @exception ParserConfigurationException DocumentBuilderを生成できない場合
+         */
+        private ItemWriter(final int threads,
+                           final File headFile, final TextOutputStream head,
+                           final File bodyFile, final TextOutputStream body,
+                           final WordSet wordSet, final WordSet endwordSet,
+                           final WordSet keywordSet, final Reference ref)
+            throws ParserConfigurationException {
+            super();
+            _builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            _executor = Executors.newFixedThreadPool(threads);
+            _queue = new ArrayDeque<>();
+            _max = threads * 4;
+            _headFile = headFile;
+            _head = head;
+            _bodyFile = bodyFile;
+            _body = body;
+            _wordSet = wordSet;
+            _endwordSet = endwordSet;
+            _keywordSet = keywordSet;
+            _ref = ref;
+            _headCache = _newTextCache();
+            _bodyCache = _newTextCache();
+        }
+
+
+        @Override
+        public void handle(final Element item) throws IOException {
+            Document doc = _builder.newDocument();
+            final Element elem = (Element)doc.importNode(item, true);
+            doc.appendChild(elem);
+            _queue.add(_executor.submit(new Callable<ItemChunk>() {
+                    @Override
+                    public ItemChunk call() throws IOException {
+                        return _encodeItem(elem, _headFile, _bodyFile, _ref,
+                                           _headCache.get(), _bodyCache.get());
+                    }
+                }));
+            if (_queue.size() >= _max) {
+                _writeNext();
+            }
+        }
+
+        /**
+         * スレッドごとに符号化済みテキストのキャッシュを生成するスレッドローカル変数を返します。
+         * キャッシュを使用しない場合はnullを保持します。
+         *
+         * @return スレッドローカル変数
+         */
+        private ThreadLocal<TextOutputStream.TextCache> _newTextCache() {
+            return new ThreadLocal<TextOutputStream.TextCache>() {
+                @Override
+                protected TextOutputStream.TextCache initialValue() {
+                    if (_textCacheSize <= 0) {
+                        return null;
+                    }
+                    return new TextOutputStream.TextCache(_textCacheSize);
+                }
+            };
+        }
+
+        /**
+         * 残りのチャンクをすべて書き込みます。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private void finish() throws IOException {
+            while (!_queue.isEmpty()) {
+                _writeNext();
+            }
+        }
+
+        /**
+         * スレッドプールを停止します。
+         *
+         */
+        private void shutdown() {
+            _executor.shutdownNow();
+        }
+
+        /**
+         * 最も古いチャンクの符号化の完了を待って書き込みます。
+         *
+         * @exception IOException 入出力エラーが発生した場合
+         */
+        private void _writeNext() throws IOException {
+            ItemChunk chunk;
+            try {
+                chunk = _queue.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                throw new IOException(cause);
+            }
+            _writeChunk(chunk, _headFile, _head, _bodyFile, _body,
+                        _wordSet, _endwordSet, _keywordSet, _ref);
+        }
+    }
 
 
     /**
@@ -104,7 +333,23 @@ public class Xml2Eb {
                     System.err.println("Cannot read the file.");
                     System.exit(1);
                 }
-                new Xml2Eb(target).convert();
+                Xml2Eb xml2eb = new Xml2Eb(target);
+                xml2eb.setStreaming(Boolean.getBoolean("xml2eb.streaming"));
+                xml2eb.setMemoryLimit(_parseSize(System.getProperty("xml2eb.memory")));
+                xml2eb.setIndexMemoryLimit(
+                    _parseSize(System.getProperty("xml2eb.index.memory")));
+                xml2eb.setIndexFillFactor(
+                    _parseFactor(System.getProperty("xml2eb.index.fill")));
+                xml2eb.setTextCacheSize(_parseSize(System.getProperty("xml2eb.text.cache")));
+                Integer itemThreads = Integer.getInteger("xml2eb.item.threads");
+                if (itemThreads != null) {
+                    xml2eb.setItemThreads(itemThreads.intValue());
+                }
+                Integer threads = Integer.getInteger("xml2eb.threads");
+                if (threads != null) {
+                    xml2eb.setThreads(threads.intValue());
+                }
+                xml2eb.convert();
             } catch (ParserConfigurationException | SAXException | IOException e) {
                 System.err.println("Unrecoverable error happened.");
                 System.exit(1);
@@ -113,6 +358,61 @@ public class Xml2Eb {
     }
 
 
+    /**
+     * サイズ指定文字列をバイト数に変換します。
+     * 末尾にk/m/gを付けた場合はそれぞれKB/MB/GB単位とみなします。
+     *
+     * @param str サイズ指定文字列
+     * @return バイト数 (指定がないか不正な場合は0)
+     */
+    private static long _parseSize(final String str) {
+        if (StringUtils.isBlank(str)) {
+            return 0L;
+        }
+        String val = str.trim().toLowerCase(Locale.ENGLISH);
+        long unit = 1L;
+        char c = val.charAt(val.length() - 1);
+        if (c == 'k') {
+            unit = 1024L;
+        } else if (c == 'm') {
+            unit = 1024L * 1024L;
+        } else if (c == 'g') {
+            unit = 1024L * 1024L * 1024L;
+        }
+        if (unit > 1L) {
+            val = val.substring(0, val.length() - 1);
+        }
+        try {
+            return Long.parseLong(val) * unit;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid size: " + str);
+            return 0L;
+        }
+    }
+
+
+    /**
+     * 充填率の指定文字列を値に変換します。
+     *
+     * @param str 充填率の指定文字列
+     * @return 充填率 (指定がないか不正な場合は1)
+     */
+    private static float _parseFactor(final String str) {
+        if (StringUtils.isBlank(str)) {
+            return 1.0f;
+        }
+        try {
+            float factor = Float.parseFloat(str.trim());
+            if (factor > 0.0f && factor <= 1.0f) {
+                return factor;
+            }
+        } catch (NumberFormatException e) {
+        }
+        System.err.println("Invalid fill factor: " + str);
+        return 1.0f;
+    }
+
+
     /**
      * コンストラクタ。
      *
@@ -139,6 +439,86 @@ public class Xml2Eb {
         _outdir = dir;
     }
 
+    /**
+     * ストリーム読み込みを行うかどうかを設定します。
+     * ストリーム読み込みではitem要素を1つずつ処理し、文書全体を保持しません。
+     *
+     * @param streaming ストリーム読み込みを行う場合はtrue
+     */
+    public void setStreaming(final boolean streaming) {
+        _streaming = streaming;
+    }
+
+    /**
+     * 一時データをメモリ上に保持する最大バイト数を設定します。
+     * 一時データは上限に達するまでメモリ上に保持し、
+     * 上限を超えた書籍構成要素のみ一時ファイルに書き出します。
+     * 0を指定した場合は常に一時ファイルを使用します。
+     *
+     * @param limit 最大バイト数
+     */
+    public void setMemoryLimit(final long limit) {
+        _memoryLimit = limit;
+    }
+
+    /**
+     * 検索語セットごとにメモリ上に保持する最大バイト数を設定します。
+     * 上限に達した検索語は整列して一時ファイルに書き出し、
+     * インデックスの出力時に併合します。
+     * 0を指定した場合はすべての検索語をメモリ上に保持します。
+     *
+     * @param limit 最大バイト数
+     */
+    public void setIndexMemoryLimit(final long limit) {
+        _indexMemoryLimit = limit;
+    }
+
+    /**
+     * インデックスのリーフブロックの充填率を設定します。
+     * 1未満を指定した場合、各リーフブロックに空きを残すため
+     * インデックスは大きくなります。
+     *
+     * @param factor 充填率 (0より大きく1以下)
+     */
+    public void setIndexFillFactor(final float factor) {
+        _indexFillFactor = factor;
+    }
+
+    /**
+     * 見出し/本文の符号化済みテキストのキャッシュの最大バイト数を設定します。
+     * 繰り返し現れる短いテキストは符号化したバイト列を再利用します。
+     * 0を指定した場合はキャッシュを使用しません。
+     *
+     * @param size 最大バイト数
+     */
+    public void setTextCacheSize(final long size) {
+        _textCacheSize = size;
+    }
+
+    /**
+     * 副本内のitem要素の見出し/本文を並行して符号化するスレッド数を設定します。
+     * 各item要素は個別のバイト列に符号化し、1つのスレッドで元の順に連結します。
+     * 1以下を指定した場合はitem要素を順に変換します。
+     *
+     * @param threads スレッド数
+     */
+    public void setItemThreads(final int threads) {
+        _itemThreads = threads;
+    }
+
+    /**
+     * 副本を並行して変換するスレッド数を設定します。
+     * 副本内の各インデックスもこのスレッド数の範囲で並行して書き込みます。
+     * 1以下を指定した場合 (既定値) は副本およびインデックスを順に変換します。
+     * 並行して変換する副本の数だけ検索語セットを同時に保持するため、
+     * メモリ使用量はおおよそスレッド数に比例して増えます。
+     *
+     * @param threads スレッド数
+     */
+    public void setThreads(final int threads) {
+        _threads = threads;
+    }
+
     /**
      * 変換します。
      *
@@ -148,13 +528,19 @@ public class Xml2Eb {
      */
     public void convert()
         throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setIgnoringComments(true);
-        factory.setIgnoringElementContentWhitespace(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        builder.setErrorHandler(new LoggingErrorHandler());
         _logger.info("load file: " + _xmlfile.getPath());
-        _doc = builder.parse(_xmlfile);
+        _store = new SectionStore(_memoryLimit);
+        if (_streaming) {
+            _reader = new BookStreamReader(_xmlfile);
+            _doc = _reader.readSkeleton();
+        } else {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setIgnoringComments(true);
+            factory.setIgnoringElementContentWhitespace(true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            builder.setErrorHandler(new LoggingErrorHandler());
+            _doc = builder.parse(_xmlfile);
+        }
 
         Node root = _doc.getFirstChild();
         if (root.getNodeType() != Node.ELEMENT_NODE) {
@@ -168,22 +554,90 @@ public class Xml2Eb {
         Element book = (Element)root;
         NodeList nlist = book.getElementsByTagName("subbook");
         int len = nlist.getLength();
-        CatalogInfo[] info = new CatalogInfo[len];
+        Element[] subbook = new Element[len];
         for (int i = 0; i < len; i++) {
-            Element subbook = (Element)nlist.item(i);
-            info[i] = _convert(subbook);
+            subbook[i] = (Element)nlist.item(i);
+        }
+        CatalogInfo[] info;
+        int threads = Math.min(_threads, len);
+        if (threads > 1) {
+            info = _convert(subbook, threads);
+        } else {
+            info = new CatalogInfo[len];
+            for (int i = 0; i < len; i++) {
+                info[i] = _convert(subbook[i], i);
+            }
         }
         File file = new File(_outdir, "catalogs");
         _writeCatalogs(file, info);
     }
 
+    /**
+     * 複数のsubbookノードを並行して変換します。
+     * DOMは参照のみでもスレッドセーフではないため、
+     * 各subbookノードは個別のドキュメントに複製してから変換します。
+     *
+     * @param subbook subbookノード
+     * @param threads スレッド数
+     * @return 書籍管理情報
+     * @exception ParserConfigurationException DocumentBuilderを生成できない場合
+     * @exception IOException 変換中にエラーが発生した場合
+     */
+    private CatalogInfo[] _convert(final Element[] subbook, final int threads)
+        throws ParserConfigurationException, IOException {
+        _logger.info("convert subbooks in parallel: threads=" + threads);
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        int len = subbook.length;
+        List<Future<CatalogInfo>> list = new ArrayList<>(len);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < len; i++) {
+                Document doc = builder.newDocument();
+                final Element elem = (Element)doc.importNode(subbook[i], true);
+                doc.appendChild(elem);
+                subbook[i].getParentNode().removeChild(subbook[i]);
+                final int index = i;
+                list.add(executor.submit(new Callable<CatalogInfo>() {
+                        @Override
+                        public CatalogInfo call() throws IOException {
+                            return _convert(elem, index);
+                        }
+                    }));
+            }
+            CatalogInfo[] info = new CatalogInfo[len];
+            for (int i = 0; i < len; i++) {
+                try {
+                    info[i] = list.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            return info;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * subbookノードを変換します。
      *
      * @param subbook subbookノード
+     * @param index 副本の番号 (0から)
      * @return 書籍管理情報
+     * @exception InterruptedIOException インデックスの書き込み中に割り込まれた場合
      */
-    private CatalogInfo _convert(final Element subbook) {
+    private CatalogInfo _convert(final Element subbook, final int index)
+        throws InterruptedIOException {
         String type = subbook.getAttribute("type");
         String title = subbook.getAttribute("title");
         String dir = subbook.getAttribute("dir");
@@ -407,30 +861,38 @@ public class Xml2Eb {
                 _writeMenu(menuFile, menuElem, ref);
                 linker.setMenuFile(menuFile);
             }
-            NodeList itemList = contentElem.getElementsByTagName("item");
-            // 見出し
             File headFile = new File(_basedir, prefix + HEAD_FILE);
-            _writeHead(headFile, itemList, ref);
-            linker.setHeadFile(headFile);
-            // 本文
             File bodyFile = new File(_basedir, prefix + BODY_FILE);
-            _writeBody(bodyFile, itemList, ref);
+            File wordFile = new File(_basedir, prefix + WORD_FILE);
+            File endwordFile = new File(_basedir, prefix + ENDWORD_FILE);
+            File keywordFile = new File(_basedir, prefix + KEYWORD_FILE);
+            // 見出し/本文/検索語 (item要素を一度だけ走査)
+            WordSet wordSet = new WordSet(WordSet.DIRECTION_WORD);
+            WordSet endwordSet = new WordSet(WordSet.DIRECTION_ENDWORD);
+            WordSet keywordSet = new WordSet(WordSet.DIRECTION_WORD);
+            wordSet.setMemoryLimit(_indexMemoryLimit, _basedir);
+            endwordSet.setMemoryLimit(_indexMemoryLimit, _basedir);
+            keywordSet.setMemoryLimit(_indexMemoryLimit, _basedir);
+            _writeItems(contentElem, index, headFile, bodyFile,
+                        wordSet, endwordSet, keywordSet, ref);
+            linker.setHeadFile(headFile);
             linker.setBodyFile(bodyFile);
             // インデックス
-            File wordFile = new File(_basedir, prefix + WORD_FILE);
-            if (_writeWordIndex(wordFile, itemList, WordSet.DIRECTION_WORD, ref)) {
+            boolean[] written =
+                _writeIndex(new File[] {wordFile, endwordFile, keywordFile},
+                            new WordSet[] {wordSet, endwordSet, keywordSet}, ref);
+            if (written[0]) {
                 linker.setWordFile(wordFile);
             }
-            File endwordFile = new File(_basedir, prefix + ENDWORD_FILE);
-            if (_writeWordIndex(endwordFile, itemList, WordSet.DIRECTION_ENDWORD, ref)) {
+            if (written[1]) {
                 linker.setEndwordFile(endwordFile);
             }
-            File keywordFile = new File(_basedir, prefix + KEYWORD_FILE);
-            if (_writeKeywordIndex(keywordFile, itemList, WordSet.DIRECTION_WORD, ref)) {
+            if (written[2]) {
                 linker.setKeywordFile(keywordFile);
             }
         }
         linker.setReference(ref);
+        linker.setSectionStore(_store);
         linker.link();
         linker.delete();
         return info;
@@ -450,7 +912,7 @@ public class Xml2Eb {
             stream =
                 new TextOutputStream(file,
                                      new BufferedOutputStream(
-                                         new FileOutputStream(file)));
+                                         _store.openOutputStream(file)));
             stream.setReference(ref);
             stream.beginContext();
             _writeNode(stream, node, 1, ref);
@@ -477,7 +939,7 @@ public class Xml2Eb {
             stream =
                 new TextOutputStream(file,
                                      new BufferedOutputStream(
-                                         new FileOutputStream(file)));
+                                         _store.openOutputStream(file)));
             stream.setReference(ref);
             int len = layerList.getLength();
             _logger.info("layer count: " + len);
@@ -499,167 +961,415 @@ public class Xml2Eb {
     }
 
     /**
-     * 指定されたファイルに見出しデータを書き込みます。
+     * 指定された副本のitem要素を一度だけ走査し、
+     * 見出し/本文の書き込みと検索語の登録を同時に行います。
      *
-     * @param file 見出しファイル
-     * @param itemList itemノードリスト
+     * @param content contentノード
+     * @param index 副本の番号 (0から)
+     * @param headFile 見出しファイル
+     * @param bodyFile 本文ファイル
+     * @param wordSet 前方一致検索語セット
+     * @param endwordSet 後方一致検索語セット
+     * @param keywordSet キーワードセット
      * @param ref 参照情報
      */
-    private void _writeHead(final File file, final NodeList itemList, final Reference ref) {
-        _logger.info("write file: " + file.getPath());
-        TextOutputStream stream = null;
+    private void _writeItems(final Element content, final int index,
+                             final File headFile, final File bodyFile,
+                             final WordSet wordSet, final WordSet endwordSet,
+                             final WordSet keywordSet, final Reference ref) {
+        _logger.info("write file: " + headFile.getPath());
+        _logger.info("write file: " + bodyFile.getPath());
+        TextOutputStream head = null;
+        TextOutputStream body = null;
         try {
-            stream =
-                new TextOutputStream(file,
+            head =
+                new TextOutputStream(headFile,
                                      new BufferedOutputStream(
-                                         new FileOutputStream(file)));
-            stream.setReference(ref);
-            stream.beginContext();
-            int len = itemList.getLength();
-            _logger.info("item count: " + len);
-            for (int i = 0; i < len; i++) {
-                Element itemElem = (Element)itemList.item(i);
-                String id = itemElem.getAttribute("id");
-                ref.putHeadTag(id, file, stream.getSize());
-                _logger.trace("head: '" + id + "'");
-                NodeList headList = itemElem.getElementsByTagName("head");
-                int n = headList.getLength();
-                for (int j = 0; j < n; j++) {
-                    Element headElem = (Element)headList.item(j);
-                    _writeNode(stream, headElem, 1, ref);
-                    stream.newLine();
+                                         _store.openOutputStream(headFile)));
+            head.setReference(ref);
+            head.setTextCacheSize(_textCacheSize);
+            head.beginContext();
+            body =
+                new TextOutputStream(bodyFile,
+                                     new BufferedOutputStream(
+                                         _store.openOutputStream(bodyFile)));
+            body.setReference(ref);
+            body.setTextCacheSize(_textCacheSize);
+            body.beginContext();
+            int len;
+            if (_itemThreads > 1) {
+                len = _writeItems(content, index, headFile, head, bodyFile, body,
+                                  wordSet, endwordSet, keywordSet, ref);
+            } else if (_reader != null) {
+                final TextOutputStream headStream = head;
+                final TextOutputStream bodyStream = body;
+                len = _reader.readItems(index, new BookStreamReader.ItemHandler() {
+                    @Override
+                    public void handle(final Element item) throws IOException {
+                        _writeItem(item, headFile, headStream, bodyFile, bodyStream,
+                                   wordSet, endwordSet, keywordSet, ref);
+                    }
+                });
+            } else {
+                NodeList itemList = content.getElementsByTagName("item");
+                len = itemList.getLength();
+                for (int i = 0; i < len; i++) {
+                    Element item = (Element)itemList.item(i);
+                    _writeItem(item, headFile, head, bodyFile, body,
+                               wordSet, endwordSet, keywordSet, ref);
                 }
             }
-            stream.endContext();
-        } catch (IOException e) {
+            _logger.info("item count: " + len);
+            head.endContext();
+            body.endContext();
+        } catch (ParserConfigurationException | IOException e) {
             _logger.error(e.getMessage(), e);
         } finally {
-            IOUtils.closeQuietly(stream);
+            IOUtils.closeQuietly(head);
+            IOUtils.closeQuietly(body);
         }
     }
 
     /**
-     * 指定されたファイルに本文データを書き込みます。
+     * 副本のitem要素を複数のスレッドで符号化し、元の順に書き込みます。
      *
-     * @param file 本文ファイル
-     * @param itemList itemノードリスト
+     * @param content contentノード
+     * @param index 副本の番号 (0から)
+     * @param headFile 見出しファイル
+     * @param head 見出し出力ストリーム
+     * @param bodyFile 本文ファイル
+     * @param body 本文出力ストリーム
+     * @param wordSet 前方一致検索語セット
+     * @param endwordSet 後方一致検索語セット
+     * @param keywordSet キーワードセット
      * @param ref 参照情報
+     * @return 処理したitem要素の数
+     * @exception ParserConfigurationException DocumentBuilderを生成できない場合
+     * @exception IOException 入出力エラーが発生した場合
      */
-    private void _writeBody(final File file, final NodeList itemList, final Reference ref) {
-        _logger.info("write file: " + file.getPath());
-        TextOutputStream stream = null;
+    private int _writeItems(final Element content, final int index,
+                            final File headFile, final TextOutputStream head,
+                            final File bodyFile, final TextOutputStream body,
+                            final WordSet wordSet, final WordSet endwordSet,
+                            final WordSet keywordSet, final Reference ref)
+        throws ParserConfigurationException, IOException {
+        _logger.info("encode items in parallel: threads=" + _itemThreads);
+        ItemWriter writer = new ItemWriter(_itemThreads, headFile, head, bodyFile, body,
+                                           wordSet, endwordSet, keywordSet, ref);
         try {
-            stream =
-                new TextOutputStream(file,
-                                     new BufferedOutputStream(
-                                         new FileOutputStream(file)));
-            stream.setReference(ref);
-            stream.beginContext();
-            int len = itemList.getLength();
-            _logger.info("item count: " + len);
-            for (int i = 0; i < len; i++) {
-                Element itemElem = (Element)itemList.item(i);
-                String id = itemElem.getAttribute("id");
-                ref.putBodyTag(id, file, stream.getSize());
-                _logger.trace("body: '" + id + "'");
-                NodeList bodyList = itemElem.getElementsByTagName("body");
-                int n = bodyList.getLength();
-                for (int j = 0; j < n; j++) {
-                    Element bodyElem = (Element)bodyList.item(j);
-                    stream.setIndent(1);
-                    _writeNode(stream, bodyElem, 2, ref);
+            int len;
+            if (_reader != null) {
+                len = _reader.readItems(index, writer);
+            } else {
+                NodeList itemList = content.getElementsByTagName("item");
+                len = itemList.getLength();
+                for (int i = 0; i < len; i++) {
+                    writer.handle((Element)itemList.item(i));
                 }
             }
-            stream.endContext();
-        } catch (IOException e) {
-            _logger.error(e.getMessage(), e);
+            writer.finish();
+            return len;
         } finally {
-            IOUtils.closeQuietly(stream);
+            writer.shutdown();
         }
     }
 
     /**
-     * 指定されたファイルにインデックスデータを書き込みます。
+     * item要素の見出し/本文をそれぞれ個別のバイト列に符号化します。
+     * 参照位置はバイト列内の位置で個別の参照情報に登録します。
+     * 本文は、直前のitem要素によらず同じ状態から始まるbody要素の先頭のインデント指定から
+     * 符号化するため、書き込み先の状態と一致します。
+     * 見出し/本文の変換に失敗した場合は順に変換する場合と同じく、
+     * エラーを記録して途中までの内容を残し、開始中の制御記述子を終了します。
+     *
+     * @param item item要素
+     * @param headFile 見出しファイル
+     * @param bodyFile 本文ファイル
+     * @param ref 参照情報 (外字、画像および音声の定義のみ参照)
+     * @param headCache 見出しの符号化済みテキストのキャッシュ (使用しない場合はnull)
+     * @param bodyCache 本文の符号化済みテキストのキャッシュ (使用しない場合はnull)
+     * @return チャンク
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private ItemChunk _encodeItem(final Element item, final File headFile,
+                                  final File bodyFile, final Reference ref,
+                                  final TextOutputStream.TextCache headCache,
+                                  final TextOutputStream.TextCache bodyCache)
+        throws IOException {
+        ItemChunk chunk = new ItemChunk();
+        chunk._id = item.getAttribute("id");
+        ByteArrayOutputStream headOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        chunk._headRef = new Reference(ref);
+        chunk._bodyRef = new Reference(ref);
+        chunk._head = new TextOutputStream(headFile, headOut);
+        chunk._head.setReference(chunk._headRef);
+        chunk._head.setTextCache(headCache);
+        chunk._body = new TextOutputStream(bodyFile, bodyOut);
+        chunk._body.setReference(chunk._bodyRef);
+        chunk._body.setTextCache(bodyCache);
+        for (Node node = item.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String tag = node.getNodeName();
+            if ("head".equals(tag)) {
+                chunk._hasHead = true;
+                _writeHead(chunk._head, node, chunk._id, chunk._headRef);
+            } else if ("body".equals(tag)) {
+                chunk._hasBody = true;
+                _writeBody(chunk._body, node, chunk._id, chunk._bodyRef);
+            } else if ("word".equals(tag)) {
+                chunk._wordList.add(node.getTextContent());
+            } else if ("keyword".equals(tag)) {
+                chunk._keywordList.add(node.getTextContent());
+            }
+        }
+        // 終端のブロック埋めを行わないため閉じずにフラッシュする
+        chunk._head.flush();
+        chunk._body.flush();
+        chunk._headData = headOut.toByteArray();
+        chunk._bodyData = bodyOut.toByteArray();
+        return chunk;
+    }
+
+    /**
+     * item要素のチャンクを書き込み、タグ位置、参照位置および検索語を登録します。
+     *
+     * @param chunk チャンク
+     * @param headFile 見出しファイル
+     * @param head 見出し出力ストリーム
+     * @param bodyFile 本文ファイル
+     * @param body 本文出力ストリーム
+     * @param wordSet 前方一致検索語セット
+     * @param endwordSet 後方一致検索語セット
+     * @param keywordSet キーワードセット
+     * @param ref 参照情報
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _writeChunk(final ItemChunk chunk,
+                             final File headFile, final TextOutputStream head,
+                             final File bodyFile, final TextOutputStream body,
+                             final WordSet wordSet, final WordSet endwordSet,
+                             final WordSet keywordSet, final Reference ref)
+        throws IOException {
+        String id = chunk._id;
+        ref.putHeadTag(id, headFile, head.getSize());
+        ref.putBodyTag(id, bodyFile, body.getSize());
+        _logger.trace("item: '" + id + "'");
+        if (chunk._hasHead) {
+            long pos = head.writeChunk(chunk._head, chunk._headData, chunk._headData.length);
+            ref.putRef(chunk._headRef, pos);
+        }
+        if (chunk._hasBody) {
+            // チャンクと同じインデント指定の状態にしてから書き込む
+            body.setIndent(1);
+            long pos = body.writeChunk(chunk._body, chunk._bodyData, chunk._bodyData.length);
+            ref.putRef(chunk._bodyRef, pos);
+        }
+        for (String str : chunk._wordList) {
+            _logger.trace("word: '" + str + "'");
+            _addWord(wordSet, str, id);
+            _addWord(endwordSet, str, id);
+        }
+        for (String str : chunk._keywordList) {
+            _logger.trace("keyword: '" + str + "'");
+            _addWord(keywordSet, str, id);
+        }
+    }
+
+    /**
+     * item要素の見出し/本文を書き込み、検索語を登録します。
+     * 見出し/本文の変換や検索語の登録に失敗した場合はエラーを記録し、
+     * 同じitem要素の残りの要素および後続のitem要素の変換を続けます。
+     *
+     * @param item item要素
+     * @param headFile 見出しファイル
+     * @param head 見出し出力ストリーム
+     * @param bodyFile 本文ファイル
+     * @param body 本文出力ストリーム
+     * @param wordSet 前方一致検索語セット
+     * @param endwordSet 後方一致検索語セット
+     * @param keywordSet キーワードセット
+     * @param ref 参照情報
+     * @exception IOException 入出力エラーが発生した場合
+     */
+    private void _writeItem(final Element item,
+                            final File headFile, final TextOutputStream head,
+                            final File bodyFile, final TextOutputStream body,
+                            final WordSet wordSet, final WordSet endwordSet,
+                            final WordSet keywordSet, final Reference ref)
+        throws IOException {
+        String id = item.getAttribute("id");
+        ref.putHeadTag(id, headFile, head.getSize());
+        ref.putBodyTag(id, bodyFile, body.getSize());
+        _logger.trace("item: '" + id + "'");
+        for (Node node = item.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String tag = node.getNodeName();
+            if ("head".equals(tag)) {
+                _writeHead(head, node, id, ref);
+            } else if ("body".equals(tag)) {
+                _writeBody(body, node, id, ref);
+            } else if ("word".equals(tag)) {
+                String str = node.getTextContent();
+                _logger.trace("word: '" + str + "'");
+                _addWord(wordSet, str, id);
+                _addWord(endwordSet, str, id);
+            } else if ("keyword".equals(tag)) {
+                String str = node.getTextContent();
+                _logger.trace("keyword: '" + str + "'");
+                _addWord(keywordSet, str, id);
+            }
+        }
+    }
+
+    /**
+     * head要素の内容を見出しとして書き込みます。
+     * 変換に失敗した場合はエラーを記録し、開始中の制御記述子を終了して見出しを区切ります。
+     *
+     * @param head 見出し出力ストリーム
+     * @param node head要素
+     * @param id 参照用タグ名称
+     * @param ref 参照情報
+     * @exception IOException 失敗した見出しを区切れない場合
+     */
+    private void _writeHead(final TextOutputStream head, final Node node,
+                            final String id, final Reference ref) throws IOException {
+        try {
+            _writeNode(head, node, 1, ref);
+        } catch (IOException e) {
+            _logger.error(e.getMessage() + " [head: " + id + "]", e);
+            head.endModifiers();
+        }
+        head.newLine();
+    }
+
+    /**
+     * body要素の内容を本文として書き込みます。
+     * 変換に失敗した場合はエラーを記録し、開始中の制御記述子を終了します。
+     *
+     * @param body 本文出力ストリーム
+     * @param node body要素
+     * @param id 参照用タグ名称
+     * @param ref 参照情報
+     * @exception IOException 失敗した本文の制御記述子を終了できない場合
+     */
+    private void _writeBody(final TextOutputStream body, final Node node,
+                            final String id, final Reference ref) throws IOException {
+        body.setIndent(1);
+        try {
+            _writeNode(body, node, 2, ref);
+        } catch (IOException e) {
+            _logger.error(e.getMessage() + " [body: " + id + "]", e);
+            body.endModifiers();
+        }
+    }
+
+    /**
+     * 検索語を登録します。
+     * 登録できない検索語はエラーを記録して読み飛ばします。
+     *
+     * @param set 検索語セット
+     * @param word 検索語
+     * @param id 参照用タグ名称
+     */
+    private void _addWord(final WordSet set, final String word, final String id) {
+        try {
+            set.add(word, id);
+        } catch (IOException e) {
+            _logger.error(e.getMessage() + " [word: " + id + "]", e);
+        }
+    }
+
+    /**
+     * 指定されたファイルにそれぞれのインデックスデータを書き込みます。
+     * 複数のスレッドを使用できる場合は各インデックスを並行して書き込みます。
+     * この場合、各インデックスの参照位置は個別の参照情報に登録し、
+     * すべての書き込みが終わった後にインデックスの順に参照情報へ追加します。
      *
      * @param file インデックスファイル
-     * @param itemList itemノードリスト
-     * @param direction 単語解析方向
+     * @param wordSet 検索語セット
      * @param ref 参照情報
-     * @return 検索語が存在した場合はtrue、そうでない場合はfalse
+     * @return 検索語が存在したかどうかの配列
+     * @exception InterruptedIOException 書き込みの完了を待つ間に割り込まれた場合
      */
-    private boolean _writeWordIndex(final File file, final NodeList itemList, final int direction,
-                                    final Reference ref) {
-        _logger.info("write file: " + file.getPath());
-        IndexWriter iw = null;
-        boolean avail = false;
+    private boolean[] _writeIndex(final File[] file, final WordSet[] wordSet,
+                                  final Reference ref) throws InterruptedIOException {
+        int len = file.length;
+        boolean[] written = new boolean[len];
+        int threads = Math.min(_threads, len);
+        if (threads <= 1) {
+            for (int i = 0; i < len; i++) {
+                written[i] = _writeIndex(file[i], wordSet[i], ref);
+            }
+            return written;
+        }
+        _logger.info("write indexes in parallel: threads=" + threads);
+        List<Future<Boolean>> list = new ArrayList<>(len);
+        Reference[] sink = new Reference[len];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            WordSet wordSet = new WordSet(direction);
-            int len = itemList.getLength();
             for (int i = 0; i < len; i++) {
-                Element itemElem = (Element)itemList.item(i);
-                String id = itemElem.getAttribute("id");
-                NodeList wordList = itemElem.getElementsByTagName("word");
-                int n = wordList.getLength();
-                for (int j = 0; j < n; j++) {
-                    Element wordElem = (Element)wordList.item(j);
-                    String str = wordElem.getTextContent();
-                    _logger.trace("word: '" + str + "'");
-                    wordSet.add(str, id);
-                }
+                final File f = file[i];
+                final WordSet set = wordSet[i];
+                final Reference r = new Reference();
+                sink[i] = r;
+                list.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return Boolean.valueOf(_writeIndex(f, set, r));
+                        }
+                    }));
             }
-            _logger.info("word count: " + wordSet.size());
-            avail = !wordSet.isEmpty();
-            if (avail) {
-                iw = new IndexWriter(file);
-                iw.setReference(ref);
-                iw.write(wordSet);
+            for (int i = 0; i < len; i++) {
+                try {
+                    written[i] = list.get(i).get().booleanValue();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    _logger.error(cause.getMessage(), cause);
+                }
+                ref.putRef(sink[i]);
             }
-        } catch (IOException e) {
-            _logger.error(e.getMessage(), e);
         } finally {
-            if (iw != null) {
-                iw.close();
-            }
+            executor.shutdownNow();
         }
-        return avail;
+        return written;
     }
 
     /**
      * 指定されたファイルにインデックスデータを書き込みます。
      *
      * @param file インデックスファイル
-     * @param itemList itemノードリスト
-     * @param direction 単語解析方向
+     * @param wordSet 検索語セット
      * @param ref 参照情報
-     * @return キーワードが存在した場合はtrue、そうでない場合はfalse
+     * @return 検索語が存在した場合はtrue、そうでない場合はfalse
      */
-    private boolean _writeKeywordIndex(final File file, final NodeList itemList,
-                                       final int direction, final Reference ref) {
+    private boolean _writeIndex(final File file, final WordSet wordSet, final Reference ref) {
         _logger.info("write file: " + file.getPath());
+        if (wordSet.isEmpty()) {
+            _logger.info("word count: 0");
+            return false;
+        }
         IndexWriter iw = null;
-        boolean avail = false;
         try {
-            WordSet wordSet = new WordSet(direction);
-            int len = itemList.getLength();
-            for (int i = 0; i < len; i++) {
-                Element itemElem = (Element)itemList.item(i);
-                String id = itemElem.getAttribute("id");
-                NodeList wordList = itemElem.getElementsByTagName("keyword");
-                int n = wordList.getLength();
-                for (int j = 0; j < n; j++) {
-                    Element wordElem = (Element)wordList.item(j);
-                    String str = wordElem.getTextContent();
-                    _logger.trace("keyword: '" + str + "'");
-                    wordSet.add(str, id);
-                }
-            }
+            iw = new IndexWriter(file);
+            iw.setReference(ref);
+            iw.setSectionStore(_store);
+            iw.setFillFactor(_indexFillFactor);
+            iw.write(wordSet);
             _logger.info("word count: " + wordSet.size());
-            avail = !wordSet.isEmpty();
-            if (avail) {
-                iw = new IndexWriter(file);
-                iw.setReference(ref);
-                iw.write(wordSet);
-            }
         } catch (IOException e) {
             _logger.error(e.getMessage(), e);
         } finally {
@@ -667,7 +1377,7 @@ public class Xml2Eb {
                 iw.close();
             }
         }
-        return avail;
+        return true;
     }
 
     /**
@@ -832,7 +1542,7 @@ public class Xml2Eb {
             stream =
                 new BlockOutputStream(
                     new BufferedOutputStream(
-                        new FileOutputStream(file)));
+                        _store.openOutputStream(file)));
             byte[] header = new byte[8];
             header[0] = 'd';
             header[1] = 'a';
@@ -886,7 +1596,7 @@ public class Xml2Eb {
             stream =
                 new BlockOutputStream(
                     new BufferedOutputStream(
-                        new FileOutputStream(file)));
+                        _store.openOutputStream(file)));
             int len = src.length;
             _logger.info("sound file count: " + len);
             for (int i = 0; i < len; i++) {
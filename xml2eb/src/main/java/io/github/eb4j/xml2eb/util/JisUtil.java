@@ -0,0 +1,130 @@
+package io.github.eb4j.xml2eb.util;
+
+import java.nio.charset.Charset;
+
+import io.github.eb4j.util.ByteUtil;
+
+/**
+ * JIS X 0208変換ユーティリティクラス。
+ * <p>
+ * BMPの全文字について、EUC-JPを経由したJIS X 0208の文字コードと
+ * 文字種別をあらかじめ求めた変換表を保持します。
+ * {@link UnicodeUtil#sanitizeUnicode(String)}で矯正される文字は、
+ * 矯正後の文字の文字コードと文字種別を持つため、事前に矯正する必要はありません。
+ * 矯正前の文字種別は{@link #getRawType(char)}で参照できます。
+ * 変換表は生成後に変更されないため、複数のスレッドから参照できます。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+public final class JisUtil {
+
+    /** 文字種別 (変換できない文字) */
+    public static final int TYPE_INVALID = 0;
+    /** 文字種別 (半角文字: ASCII/JIS X 0201片仮名) */
+    public static final int TYPE_NARROW = 1;
+    /** 文字種別 (全角文字: JIS X 0208) */
+    public static final int TYPE_WIDE = 2;
+    /** 文字種別 (読み捨てる文字: 改行) */
+    public static final int TYPE_DROP = 3;
+    /** 文字種別 (その他の制御文字) */
+    public static final int TYPE_CONTROL = 4;
+
+    /** 文字種別表 */
+    private static final byte[] TYPE = new byte[0x10000];
+    /** 矯正前の文字種別表 */
+    private static final byte[] RAW_TYPE = new byte[0x10000];
+    /** JIS X 0208文字コード表 */
+    private static final char[] CODE = new char[0x10000];
+
+    static {
+        Charset cs = Charset.forName("EUC-JP");
+        for (int ch = 0; ch < 0x10000; ch++) {
+            if (Character.isSurrogate((char)ch)) {
+                continue;
+            }
+            byte[] b = String.valueOf((char)ch).getBytes(cs);
+            if (b.length == 0) {
+                continue;
+            }
+            int c1 = b[0] & 0xff;
+            int c2 = b.length > 1 ? b[1] & 0xff : 0;
+            if (c1 == 0x3f && ch != '?') {
+                // EUC-JPでない不明な文字
+                continue;
+            } else if (c1 == 0x0a || c1 == 0x0d) {
+                TYPE[ch] = TYPE_DROP;
+            } else if (c1 < 0x20) {
+                TYPE[ch] = TYPE_CONTROL;
+            } else if (c1 <= 0x7e) {
+                // G0(ASCII)
+                TYPE[ch] = TYPE_NARROW;
+                CODE[ch] = (char)ByteUtil.asciiToJISX0208(c1);
+            } else if (c1 >= 0xa1 && c1 <= 0xfe) {
+                // G1(JISX0208)
+                if (c2 >= 0xa1 && c2 <= 0xfe) {
+                    TYPE[ch] = TYPE_WIDE;
+                    CODE[ch] = (char)(((c1 & 0x7f) << 8) | (c2 & 0x7f));
+                }
+            } else if (c1 == 0x8e) {
+                // G2(JISX0201)
+                if (c2 >= 0xa1 && c2 <= 0xdf) {
+                    TYPE[ch] = TYPE_NARROW;
+                    CODE[ch] = (char)ByteUtil.jisx0201ToJISX0208(c2);
+                }
+            }
+        }
+        System.arraycopy(TYPE, 0, RAW_TYPE, 0, TYPE.length);
+        // 矯正規則を変換表に取り込む
+        for (int ch = 0; ch < 0x10000; ch++) {
+            char to = UnicodeUtil.sanitizeChar((char)ch);
+            if (to != ch) {
+                TYPE[ch] = TYPE[to];
+                CODE[ch] = CODE[to];
+            }
+        }
+    }
+
+
+    /**
+     * コンストラクタ。
+     *
+     */
+    private JisUtil() {
+        super();
+    }
+
+
+    /**
+     * 指定された文字の文字種別を返します。
+     * 矯正される文字の場合は矯正後の文字の文字種別を返します。
+     *
+     * @param ch 文字
+     * @return 文字種別
+     */
+    public static int getType(final char ch) {
+        return TYPE[ch];
+    }
+
+    /**
+     * 指定された文字の矯正前の文字種別を返します。
+     *
+     * @param ch 文字
+     * @return 文字種別
+     */
+    public static int getRawType(final char ch) {
+        return RAW_TYPE[ch];
+    }
+
+    /**
+     * 指定された文字のJIS X 0208文字コードを返します。
+     * 半角文字の場合は対応する全角文字の文字コードを返します。
+     *
+     * @param ch 文字
+     * @return JIS X 0208文字コード (変換できない場合は0)
+     */
+    public static int getCode(final char ch) {
+        return CODE[ch];
+    }
+}
+
+// end of JisUtil.java
@@ -0,0 +1,249 @@
+package io.github.eb4j.xml2eb.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ソートユーティリティクラス。
+ * <p>
+ * オブジェクトを生成せずに、添字の配列を比較関数の順序で並べ替えます。
+ * 要素数が多い場合はフォーク/ジョインで並行して並べ替えることもできます。
+ *
+ * @author Hisaya FUKUMOTO
+ */
+public final class SortUtil {
+
+    /** 挿入ソートに切り替える要素数 */
+    private static final int INSERTION_THRESHOLD = 16;
+    /** 並行して並べ替える最小の要素数 */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+
+    /**
+     * 添字の比較関数。
+     */
+    public interface IndexComparator {
+
+        /**
+         * 指定された2つの添字が指す要素を比較します。
+         *
+         * @param i 添字1
+         * @param j 添字2
+         * @return 添字1の要素が小さい場合は負、等しい場合は0、大きい場合は正の値
+         */
+        int compare(int i, int j);
+    }
+
+
+    /**
+     * コンストラクタ。
+     *
+     */
+    private SortUtil() {
+        super();
+    }
+
+
+    /**
+     * 0からn-1までの添字を比較関数の順序で並べた配列を返します。
+     * 等しい要素は元の添字の順序を保ちます。
+     *
+     * @param n 要素数
+     * @param cmp 比較関数
+     * @return 並べ替えられた添字の配列
+     */
+    public static int[] sortedIndex(final int n, final IndexComparator cmp) {
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+        }
+        sort(idx, 0, n, cmp);
+        return idx;
+    }
+
+    /**
+     * 0からn-1までの添字を比較関数の順序で並べた配列を返します。
+     * 要素数が多い場合は共通プールで並行して並べ替えるため、
+     * 比較関数は複数のスレッドから同時に呼び出されても安全でなければなりません。
+     * 等しい要素は元の添字の順序を保ちます。
+     *
+     * @param n 要素数
+     * @param cmp 比較関数
+     * @return 並べ替えられた添字の配列
+     */
+    public static int[] parallelSortedIndex(final int n, final IndexComparator cmp) {
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+        }
+        parallelSort(idx, 0, n, cmp);
+        return idx;
+    }
+
+    /**
+     * 添字の配列の指定範囲を比較関数の順序で並べ替えます。
+     * 等しい要素は元の順序を保ちます。
+     *
+     * @param idx 添字の配列
+     * @param from 開始位置 (この位置を含む)
+     * @param to 終了位置 (この位置を含まない)
+     * @param cmp 比較関数
+     */
+    public static void sort(final int[] idx, final int from, final int to,
+                            final IndexComparator cmp) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] tmp = new int[to - from];
+        _mergeSort(idx, tmp, from, from, to, cmp);
+    }
+
+    /**
+     * 添字の配列の指定範囲を比較関数の順序で並行して並べ替えます。
+     * 範囲が小さい場合は呼び出し元のスレッドで並べ替えます。
+     * 等しい要素は元の順序を保ちます。
+     *
+     * @param idx 添字の配列
+     * @param from 開始位置 (この位置を含む)
+     * @param to 終了位置 (この位置を含まない)
+     * @param cmp 比較関数
+     */
+    public static void parallelSort(final int[] idx, final int from, final int to,
+                                    final IndexComparator cmp) {
+        if (to - from < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            sort(idx, from, to, cmp);
+            return;
+        }
+        int[] tmp = new int[to - from];
+        ForkJoinPool.commonPool().invoke(new SortTask(idx, tmp, from, from, to, cmp));
+    }
+
+    /**
+     * マージソートを行います。
+     *
+     * @param idx 添字の配列
+     * @param tmp 作業領域
+     * @param base 作業領域の先頭に対応する位置
+     * @param from 開始位置 (この位置を含む)
+     * @param to 終了位置 (この位置を含まない)
+     * @param cmp 比較関数
+     */
+    private static void _mergeSort(final int[] idx, final int[] tmp, final int base,
+                                   final int from, final int to,
+                                   final IndexComparator cmp) {
+        if (to - from <= INSERTION_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int val = idx[i];
+                int j = i - 1;
+                while (j >= from && cmp.compare(idx[j], val) > 0) {
+                    idx[j + 1] = idx[j];
+                    j--;
+                }
+                idx[j + 1] = val;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        _mergeSort(idx, tmp, base, from, mid, cmp);
+        _mergeSort(idx, tmp, base, mid, to, cmp);
+        _merge(idx, tmp, base, from, mid, to, cmp);
+    }
+
+    /**
+     * 整列済みの隣接する2つの範囲を併合します。
+     * 作業領域は併合する範囲に対応する部分のみを使用します。
+     *
+     * @param idx 添字の配列
+     * @param tmp 作業領域
+     * @param base 作業領域の先頭に対応する位置
+     * @param from 前半の開始位置 (この位置を含む)
+     * @param mid 後半の開始位置
+     * @param to 後半の終了位置 (この位置を含まない)
+     * @param cmp 比較関数
+     */
+    private static void _merge(final int[] idx, final int[] tmp, final int base,
+                               final int from, final int mid, final int to,
+                               final IndexComparator cmp) {
+        if (cmp.compare(idx[mid - 1], idx[mid]) <= 0) {
+            // 既に整列済み
+            return;
+        }
+        int len = mid - from;
+        int off = from - base;
+        System.arraycopy(idx, from, tmp, off, len);
+        int i = 0;
+        int j = mid;
+        int k = from;
+        while (i < len && j < to) {
+            if (cmp.compare(idx[j], tmp[off + i]) < 0) {
+                idx[k++] = idx[j++];
+            } else {
+                idx[k++] = tmp[off + i++];
+            }
+        }
+        System.arraycopy(tmp, off + i, idx, k, len - i);
+    }
+
+
+    /**
+     * 範囲を二分して並行に並べ替え、併合するタスク。
+     */
+    private static final class SortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /** 添字の配列 */
+        private int[] _idx = null;
+        /** 作業領域 */
+        private int[] _tmp = null;
+        /** 作業領域の先頭に対応する位置 */
+        private int _base = 0;
+        /** 開始位置 */
+        private int _from = 0;
+        /** 終了位置 */
+        private int _to = 0;
+        /** 比較関数 */
+        private transient IndexComparator _cmp = null;
+
+
+        /**
+         * コンストラクタ。
+         *
+         * @param idx 添字の配列
+         * @param tmp 作業領域
+         * @param base 作業領域の先頭に対応する位置
+         * @param from 開始位置 (この位置を含む)
+         * @param to 終了位置 (この位置を含まない)
+         * @param cmp 比較関数
+         */
+        private SortTask(final int[] idx, final int[] tmp, final int base,
+                         final int from, final int to, final IndexComparator cmp) {
+            super();
+            _idx = idx;
+            _tmp = tmp;
+            _base = base;
+            _from = from;
+            _to = to;
+            _cmp = cmp;
+        }
+
+
+        /**
+         * 並べ替えを行います。
+         *
+         */
+        @Override
+        protected void compute() {
+            if (_to - _from < PARALLEL_THRESHOLD) {
+                _mergeSort(_idx, _tmp, _base, _from, _to, _cmp);
+                return;
+            }
+            int mid = (_from + _to) >>> 1;
+            invokeAll(new SortTask(_idx, _tmp, _base, _from, mid, _cmp),
+                      new SortTask(_idx, _tmp, _base, mid, _to, _cmp));
+            _merge(_idx, _tmp, _base, _from, mid, _to, _cmp);
+        }
+    }
+}
+
+// end of SortUtil.java
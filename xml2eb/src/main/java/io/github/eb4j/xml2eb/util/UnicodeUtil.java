@@ -39,46 +39,51 @@ public final class UnicodeUtil {
         if (str == null) {
             return null;
         }
-        StringBuilder buf = new StringBuilder();
         int len = str.length();
-        for (int i = 0; i < len; i++) {
-            char ch = str.charAt(i);
-            if (Character.isHighSurrogate(ch)
-                || Character.isLowSurrogate(ch)) {
-                buf.append(ch);
-            } else {
-                switch (ch) {
-                    case '\u2013': // EN Dash -> HHyphen-Minus
-                        ch = '-';
-                        break;
-                    case '\u2015': // Horizontal Bar -> EM Dash
-                        ch = '\u2014';
-                        break;
-                    case '\u2225': // Parallel To -> Double Vertical Line
-                        ch = '\u2016';
-                        break;
-                    case '\uff0d': // Fullwidth Hyphen-Minus -> Minus Sign
-                        ch = '\u2212';
-                        break;
-                    case '\uff5e': // Fullwidth Tilde -> Wave Dash
-                        ch = '\u301c';
-                        break;
-                    case '\uffe0': // Fullwidth Cent Sign -> Cent Sign
-                        ch = '\u00a2';
-                        break;
-                    case '\uffe1': // Fullwidth Pound Sign -> Pound Sign
-                        ch = '\u00a3';
-                        break;
-                    case '\uffe2': // Fullwidth Not Sign -> Not Sign
-                        ch = '\u00ac';
-                        break;
-                    default:
-                        break;
-                }
-                buf.append(ch);
-            }
+        int i = 0;
+        while (i < len && sanitizeChar(str.charAt(i)) == str.charAt(i)) {
+            i++;
+        }
+        if (i == len) {
+            // 矯正する文字がなければ複製しない
+            return str;
+        }
+        char[] buf = str.toCharArray();
+        for (; i < len; i++) {
+            buf[i] = sanitizeChar(buf[i]);
+        }
+        return new String(buf);
+    }
+
+    /**
+     * 1文字を矯正します。
+     * 変換規則は{@link #sanitizeUnicode(String)}と同じです。
+     * サロゲートはそのまま返します。
+     *
+     * @param ch 矯正する文字
+     * @return 矯正後の文字
+     */
+    public static char sanitizeChar(final char ch) {
+        switch (ch) {
+            case '\u2013': // EN Dash -> HHyphen-Minus
+                return '-';
+            case '\u2015': // Horizontal Bar -> EM Dash
+                return '\u2014';
+            case '\u2225': // Parallel To -> Double Vertical Line
+                return '\u2016';
+            case '\uff0d': // Fullwidth Hyphen-Minus -> Minus Sign
+                return '\u2212';
+            case '\uff5e': // Fullwidth Tilde -> Wave Dash
+                return '\u301c';
+            case '\uffe0': // Fullwidth Cent Sign -> Cent Sign
+                return '\u00a2';
+            case '\uffe1': // Fullwidth Pound Sign -> Pound Sign
+                return '\u00a3';
+            case '\uffe2': // Fullwidth Not Sign -> Not Sign
+                return '\u00ac';
+            default:
+                return ch;
         }
-        return buf.toString();
     }
 }
 
@@ -1,9 +1,5 @@
 package io.github.eb4j.xml2eb.util;
 
-import java.io.UnsupportedEncodingException;
-
-import org.apache.commons.lang.ArrayUtils;
-
 /**
  * 単語ユーティリティクラス。
  *
@@ -62,44 +58,12 @@ public final class WordUtil {
      * @return 有効な文字である場合はtrue、そうでない場合はfalse
      */
     public static boolean isValidChar(final int codePoint) {
-        if (Character.isSupplementaryCodePoint(codePoint)) {
+        if (codePoint < 0 || codePoint > 0xffff) {
             // 補助文字
             return false;
         }
-        // Unicode -> EUC-JP
-        String str = String.valueOf(Character.toChars(codePoint));
-        byte[] b = null;
-        try {
-            b = str.getBytes("EUC-JP");
-        } catch (UnsupportedEncodingException ignored) {
-        }
-        if (ArrayUtils.isEmpty(b)) {
-            return false;
-        }
-        int c1 = b[0] & 0xff;
-        int c2;
-        if (c1 == 0x3f && codePoint != '?') {
-            // EUC-JPでない不明な文字
-            return false;
-        } else if (c1 >= 0xa1 && c1 <= 0xfe) {
-            // G1 (JISX0208)
-            c2 = b[1] & 0xff;
-            if (c2 < 0xa1 || c2 > 0xfe) {
-                // JISX0208の文字コード外
-                return false;
-            }
-        } else if (c1 == 0x8e) {
-            // G2 (JISX0201)
-            c2 = b[1] & 0xff;
-            if (c2 < 0xa1 || c2 > 0xdf) {
-                // 半角カナの文字コード外
-                return false;
-            }
-        } else if (c1 > 0x7e) {
-            // EUC-JPの文字コード外
-            return false;
-        }
-        return true;
+        // 矯正前の文字で判定
+        return JisUtil.getRawType((char)codePoint) != JisUtil.TYPE_INVALID;
     }
 }
 
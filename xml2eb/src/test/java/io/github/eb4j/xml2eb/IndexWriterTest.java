@@ -0,0 +1,135 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test for bulk-loaded index writer.
+ */
+public class IndexWriterTest {
+
+    private static final int BLOCK_SIZE = 2048;
+    private static final String CHARS = "あいうえおかきくけこABCDEF0123";
+
+    @Test
+    public void testFillFactorRoundTrip() throws Exception {
+        int full = _roundTrip(1.0f);
+        int half = _roundTrip(0.5f);
+        assertTrue(half > full);
+    }
+
+    /**
+     * Writes an index with the given fill factor, reads it back through the
+     * upper blocks and checks that the leaves hold every word in order.
+     *
+     * @return the number of leaf blocks
+     */
+    private int _roundTrip(final float factor) throws Exception {
+        WordSet set = new WordSet(WordSet.DIRECTION_WORD);
+        Random random = new Random(1L);
+        for (int i = 0; i < 5000; i++) {
+            // word lengths grow unevenly, so upper blocks are re-strided while being built
+            int len = 1 + random.nextInt(1 + random.nextInt(40));
+            StringBuilder buf = new StringBuilder();
+            for (int j = 0; j < len; j++) {
+                buf.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            set.add(buf.toString(), "item" + i);
+        }
+        List<byte[]> expected = new ArrayList<>();
+        for (Word word : set) {
+            expected.add(word.getWord());
+        }
+
+        File dir = Files.createTempDirectory("index").toFile();
+        File file = new File(dir, "word.tmp");
+        try {
+            Reference ref = new Reference();
+            IndexWriter writer = new IndexWriter(file);
+            writer.setReference(ref);
+            writer.setFillFactor(factor);
+            writer.write(set);
+            writer.close();
+            assertEquals(dir.list().length, 1);
+
+            byte[] data = Files.readAllBytes(file.toPath());
+            assertEquals(data.length % BLOCK_SIZE, 0);
+            RefTable indexRef = ref.getIndexRef();
+            Map<Long, Integer> lower = new HashMap<>();
+            for (int i = 0; i < indexRef.size(); i++) {
+                lower.put(indexRef.getPosition(i), indexRef.getTag(i));
+            }
+
+            List<byte[]> actual = new ArrayList<>();
+            int[] leaves = new int[1];
+            _walk(data, 0, lower, (int)(BLOCK_SIZE * factor), actual, leaves);
+            assertEquals(actual.size(), expected.size());
+            for (int i = 0; i < actual.size(); i++) {
+                assertEquals(actual.get(i), expected.get(i));
+            }
+            assertEquals(ref.getBodyRef().size(), expected.size());
+            return leaves[0];
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Collects the words below the given block and returns the last one.
+     */
+    private byte[] _walk(final byte[] data, final int block, final Map<Long, Integer> lower,
+                         final int limit, final List<byte[]> words, final int[] leaves) {
+        int base = block * BLOCK_SIZE;
+        int id = data[base] & 0xff;
+        int count = ((data[base + 2] & 0xff) << 8) | (data[base + 3] & 0xff);
+        assertTrue(count > 0);
+        if ((id & 0x80) != 0) {
+            leaves[0]++;
+            int off = base + 4;
+            byte[] last = null;
+            for (int i = 0; i < count; i++) {
+                int len = data[off] & 0xff;
+                last = Arrays.copyOfRange(data, off + 1, off + 1 + len);
+                words.add(last);
+                off += 1 + len + 12;
+            }
+            if (count > 1) {
+                assertTrue(off - base <= limit);
+            }
+            return last;
+        }
+        int len = data[base + 1] & 0xff;
+        boolean lastBlock = (id & 0x20) != 0;
+        byte[] last = null;
+        for (int i = 0; i < count; i++) {
+            int off = base + 4 + i * (len + 4);
+            Integer child = lower.get(Long.valueOf(off + len));
+            assertNotNull(child);
+            byte[] key = Arrays.copyOfRange(data, off, off + len);
+            if (lastBlock && i == count - 1) {
+                // dummy entry pointing at the same block as the previous one
+                byte[] dummy = new byte[len];
+                Arrays.fill(dummy, (byte)0xff);
+                assertEquals(key, dummy);
+                assertEquals(child, lower.get(Long.valueOf(off - 4)));
+                continue;
+            }
+            last = _walk(data, child.intValue() - 1, lower, limit, words, leaves);
+            assertEquals(key, Arrays.copyOf(last, len));
+        }
+        return last;
+    }
+}
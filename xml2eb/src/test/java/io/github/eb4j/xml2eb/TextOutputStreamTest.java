@@ -0,0 +1,112 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test for writing pre-encoded chunks to text output stream.
+ */
+public class TextOutputStreamTest {
+
+    private static final File FILE = new File("body.tmp");
+
+    @Test
+    public void testChunkEndingNarrow() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TextOutputStream seq = new TextOutputStream(FILE, expected);
+        seq.append("あ");
+        seq.append("xyz");
+        seq.append("abc");
+        seq.append("い");
+        seq.close();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        TextOutputStream out = new TextOutputStream(FILE, actual);
+        out.append("あ");
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        TextOutputStream chunk = new TextOutputStream(FILE, data);
+        chunk.append("xyz");
+        chunk.flush();
+        long pos = out.writeChunk(chunk, data.toByteArray(), data.size());
+        assertEquals(pos, 2L);
+        // the stream continues in the narrow state left by the chunk
+        out.append("abc");
+        out.append("い");
+        out.close();
+
+        assertEquals(actual.toByteArray(), expected.toByteArray());
+    }
+
+    @Test
+    public void testChunkPendingIndent() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TextOutputStream seq = new TextOutputStream(FILE, expected);
+        seq.setIndent(1);
+        seq.append("a");
+        seq.setIndent(2);
+        long size = seq.getSize();
+        seq.append("b");
+        seq.close();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        TextOutputStream out = new TextOutputStream(FILE, actual);
+        out.setIndent(1);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        TextOutputStream chunk = new TextOutputStream(FILE, data);
+        chunk.setIndent(1);
+        chunk.append("a");
+        chunk.setIndent(2);
+        chunk.flush();
+        out.writeChunk(chunk, data.toByteArray(), data.size());
+        assertEquals(out.getSize(), size);
+        out.append("b");
+        out.close();
+
+        assertEquals(actual.toByteArray(), expected.toByteArray());
+    }
+
+    @Test
+    public void testChunkModifierNotTerminated() throws Exception {
+        TextOutputStream out = new TextOutputStream(FILE, new ByteArrayOutputStream());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        TextOutputStream chunk = new TextOutputStream(FILE, data);
+        chunk.beginEmphasis();
+        chunk.append("x");
+        chunk.flush();
+        try {
+            out.writeChunk(chunk, data.toByteArray(), data.size());
+            fail("unterminated modifier accepted");
+        } catch (IOException e) {
+            assertEquals(out.getSize(), 0L);
+        }
+    }
+
+    @Test
+    public void testSharedTextCache() throws Exception {
+        String[] texts = {"あ", "abc", "あ", "いx", "abc", "あ"};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TextOutputStream seq = new TextOutputStream(FILE, expected);
+        for (String text : texts) {
+            seq.append(text);
+        }
+        seq.flush();
+
+        // streams of one thread share the cache, so later streams reuse the encoded texts
+        TextOutputStream.TextCache cache = new TextOutputStream.TextCache(4096L);
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            TextOutputStream out = new TextOutputStream(FILE, actual);
+            out.setTextCache(cache);
+            for (String text : texts) {
+                out.append(text);
+            }
+            out.flush();
+            assertEquals(actual.toByteArray(), expected.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.eb4j.xml2eb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test for word set with sorted runs spilled to temporary files.
+ */
+public class WordSetTest {
+
+    private static final String CHARS = "あいうえおカキクケコABCabc012";
+
+    @Test
+    public void testSpilledEqualsInMemory() throws Exception {
+        File dir = Files.createTempDirectory("wordset").toFile();
+        try {
+            WordSet memory = new WordSet(WordSet.DIRECTION_WORD);
+            WordSet spilled = new WordSet(WordSet.DIRECTION_WORD);
+            spilled.setMemoryLimit(512L, dir);
+            Random random = new Random(1L);
+            for (int i = 0; i < 2000; i++) {
+                String word = _randomWord(random);
+                String tag = "item" + random.nextInt(50);
+                memory.add(word, tag);
+                spilled.add(word, tag);
+            }
+            // the same entries once more, so duplicates fall into different runs
+            random = new Random(1L);
+            for (int i = 0; i < 2000; i++) {
+                String word = _randomWord(random);
+                String tag = "item" + random.nextInt(50);
+                memory.add(word, tag);
+                spilled.add(word, tag);
+            }
+            assertTrue(dir.list().length > 1);
+
+            List<Word> expected = _list(memory);
+            List<Word> actual = _list(spilled);
+            assertEquals(actual, expected);
+            for (int i = 1; i < actual.size(); i++) {
+                assertTrue(actual.get(i - 1).compareTo(actual.get(i)) < 0);
+            }
+            assertEquals(dir.list().length, 0);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testDuplicateAcrossRuns() throws Exception {
+        File dir = Files.createTempDirectory("wordset").toFile();
+        try {
+            WordSet set = new WordSet(WordSet.DIRECTION_WORD);
+            set.setMemoryLimit(64L, dir);
+            for (int i = 0; i < 10; i++) {
+                set.add("abc", "item0");
+                set.add("abc", "item1");
+                set.add("b" + i, "item0");
+            }
+            assertTrue(dir.list().length > 1);
+            List<Word> list = _list(set);
+            assertEquals(list.size(), 12);
+            assertEquals(list.get(0).getReferenceTag(), "item0");
+            assertEquals(list.get(1).getReferenceTag(), "item1");
+            assertEquals(list.get(0).getWord(), list.get(1).getWord());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static String _randomWord(final Random random) {
+        int len = 1 + random.nextInt(4);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            buf.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        return buf.toString();
+    }
+
+    private static List<Word> _list(final WordSet set) {
+        List<Word> list = new ArrayList<>();
+        for (Word word : set) {
+            list.add(word);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.eb4j.xml2eb.util;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test for JIS X 0208 lookup table.
+ */
+public class JisUtilTest {
+
+    @Test
+    public void testNarrow() throws Exception {
+        assertEquals(JisUtil.getType('A'), JisUtil.TYPE_NARROW);
+        assertEquals(JisUtil.getCode('A'), 0x2341);
+        assertEquals(JisUtil.getType('?'), JisUtil.TYPE_NARROW);
+        assertEquals(JisUtil.getCode('?'), 0x2129);
+        // halfwidth katakana
+        assertEquals(JisUtil.getType('ｱ'), JisUtil.TYPE_NARROW);
+        assertEquals(JisUtil.getCode('ｱ'), 0x2522);
+    }
+
+    @Test
+    public void testWide() throws Exception {
+        assertEquals(JisUtil.getType('あ'), JisUtil.TYPE_WIDE);
+        assertEquals(JisUtil.getCode('あ'), 0x2422);
+        assertEquals(JisUtil.getType('辞'), JisUtil.TYPE_WIDE);
+        assertEquals(JisUtil.getCode('辞'), 0x3C2D);
+    }
+
+    @Test
+    public void testControl() throws Exception {
+        assertEquals(JisUtil.getType('\n'), JisUtil.TYPE_DROP);
+        assertEquals(JisUtil.getType('\r'), JisUtil.TYPE_DROP);
+        assertEquals(JisUtil.getType('\t'), JisUtil.TYPE_CONTROL);
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        assertEquals(JisUtil.getType('\ud840'), JisUtil.TYPE_INVALID);
+        assertEquals(JisUtil.getType('é'), JisUtil.TYPE_INVALID);
+        assertEquals(JisUtil.getCode('é'), 0);
+    }
+
+    @Test
+    public void testSanitized() throws Exception {
+        // en dash and fullwidth tilde are sanitized before the lookup
+        assertEquals(JisUtil.getType('\u2013'), JisUtil.getType('-'));
+        assertEquals(JisUtil.getCode('\uff5e'), JisUtil.getCode('\u301c'));
+        assertEquals(JisUtil.getRawType('\u2013'), JisUtil.TYPE_INVALID);
+        assertEquals(JisUtil.getRawType('\uff5e'), JisUtil.TYPE_INVALID);
+        // words are still checked against the raw classification
+        assertFalse(WordUtil.isValidWord("\u2013"));
+        assertFalse(WordUtil.isValidWord("\uff5e"));
+        assertTrue(WordUtil.isValidWord("\u301c"));
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.eb4j.xml2eb.util;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test for stable index sort.
+ */
+public class SortUtilTest {
+
+    @Test
+    public void testParallelEqualsSequential() throws Exception {
+        final int[] key = _randomKeys(200000, 1000);
+        SortUtil.IndexComparator cmp = new SortUtil.IndexComparator() {
+            @Override
+            public int compare(final int i, final int j) {
+                return Integer.compare(key[i], key[j]);
+            }
+        };
+        int[] sequential = SortUtil.sortedIndex(key.length, cmp);
+        int[] parallel = SortUtil.parallelSortedIndex(key.length, cmp);
+        assertEquals(parallel, sequential);
+        for (int i = 1; i < parallel.length; i++) {
+            int prev = parallel[i - 1];
+            int cur = parallel[i];
+            assertTrue(key[prev] < key[cur] || (key[prev] == key[cur] && prev < cur));
+        }
+    }
+
+    @Test
+    public void testParallelRange() throws Exception {
+        final int[] key = _randomKeys(50000, 10);
+        SortUtil.IndexComparator cmp = new SortUtil.IndexComparator() {
+            @Override
+            public int compare(final int i, final int j) {
+                return Integer.compare(key[i], key[j]);
+            }
+        };
+        int[] sequential = new int[key.length];
+        int[] parallel = new int[key.length];
+        for (int i = 0; i < key.length; i++) {
+            sequential[i] = key.length - 1 - i;
+            parallel[i] = key.length - 1 - i;
+        }
+        SortUtil.sort(sequential, 100, 40000, cmp);
+        SortUtil.parallelSort(parallel, 100, 40000, cmp);
+        assertEquals(parallel, sequential);
+        assertEquals(parallel[99], key.length - 100);
+        assertEquals(parallel[40000], key.length - 40001);
+    }
+
+    private static int[] _randomKeys(final int n, final int range) {
+        Random random = new Random(1L);
+        int[] key = new int[n];
+        for (int i = 0; i < n; i++) {
+            key[i] = random.nextInt(range);
+        }
+        return key;
+    }
+}